@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -95,7 +93,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -135,7 +132,9 @@ import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
+import com.android.settings.net.UidDetailLoader;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidUsageSummary;
 import com.android.settings.widget.ChartDataUsageView;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settings.widget.PieChartView;
@@ -144,7 +143,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -258,6 +256,7 @@ public class DataUsageSummary extends Fragment {
     private boolean mBinding;
 
     private UidDetailProvider mUidDetailProvider;
+    private UidDetailLoader mUidDetailLoader;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -312,6 +311,7 @@ public class DataUsageSummary extends Fragment {
         final View view = inflater.inflate(R.layout.data_usage_summary, container, false);
 
         mUidDetailProvider = new UidDetailProvider(context);
+        mUidDetailLoader = new UidDetailLoader(mUidDetailProvider);
 
         mTabHost = (TabHost) view.findViewById(android.R.id.tabhost);
         mTabsContainer = (ViewGroup) view.findViewById(R.id.tabs_container);
@@ -401,7 +401,7 @@ public class DataUsageSummary extends Fragment {
         mUsageSummary = (TextView) mHeader.findViewById(R.id.usage_summary);
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
 
-        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailLoader, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -570,6 +570,8 @@ public class DataUsageSummary extends Fragment {
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
+        mUidDetailLoader.release();
+        mUidDetailLoader = null;
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
@@ -1149,13 +1151,12 @@ public class DataUsageSummary extends Fragment {
 
         final Context context = getActivity();
 
-        NetworkStatsHistory.Entry entry = null;
+        long totalBytes = 0;
         if (isAppDetailMode() && mChartData != null && mChartData.detail != null) {
             // bind foreground/background to piechart and labels
-            entry = mChartData.detailDefault.getValues(start, end, now, entry);
-            final long defaultBytes = entry.rxBytes + entry.txBytes;
-            entry = mChartData.detailForeground.getValues(start, end, now, entry);
-            final long foregroundBytes = entry.rxBytes + entry.txBytes;
+            final long defaultBytes = mChartData.detailDefaultIndex.getTotal(start, end, now);
+            final long foregroundBytes = mChartData.detailForegroundIndex.getTotal(
+                    start, end, now);
 
             mAppPieChart.setOriginAngle(175);
 
@@ -1169,13 +1170,13 @@ public class DataUsageSummary extends Fragment {
             mAppForeground.setText(Formatter.formatFileSize(context, foregroundBytes));
 
             // and finally leave with summary data for label below
-            entry = mChartData.detail.getValues(start, end, now, null);
+            totalBytes = mChartData.detailIndex.getTotal(start, end, now);
 
             getLoaderManager().destroyLoader(LOADER_SUMMARY);
 
         } else {
             if (mChartData != null) {
-                entry = mChartData.network.getValues(start, end, now, null);
+                totalBytes = mChartData.networkIndex.getTotal(start, end, now);
             }
 
             // kick off loader for detailed stats
@@ -1183,7 +1184,6 @@ public class DataUsageSummary extends Fragment {
                     SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
         }
 
-        final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
         final String totalPhrase = Formatter.formatFileSize(context, totalBytes);
         final String rangePhrase = formatDateRange(context, start, end);
 
@@ -1211,8 +1211,8 @@ public class DataUsageSummary extends Fragment {
         @Override
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
             mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
-            mChart.bindDetailNetworkStats(mChartData.detail);
+            mChart.bindNetworkStats(mChartData.network, mChartData.networkIndex);
+            mChart.bindDetailNetworkStats(mChartData.detail, mChartData.detailIndex);
 
             // calcuate policy cycles based on available data
             updatePolicy(true);
@@ -1232,24 +1232,22 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<UidUsageSummary> mSummaryCallbacks = new LoaderCallbacks<
+            UidUsageSummary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<UidUsageSummary> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<UidUsageSummary> loader, UidUsageSummary data) {
+            mAdapter.bindSummary(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<UidUsageSummary> loader) {
+            mAdapter.bindSummary(null);
             updateEmptyVisible();
         }
 
@@ -1478,72 +1476,44 @@ public class DataUsageSummary extends Fragment {
      * Adapter of applications, sorted by total usage descending.
      */
     public static class DataUsageAdapter extends BaseAdapter {
-        private final UidDetailProvider mProvider;
+        private final UidDetailLoader mLoader;
         private final int mInsetSide;
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
+        private UidUsageSummary mSummary;
 
-        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
-            mProvider = checkNotNull(provider);
+        public DataUsageAdapter(UidDetailLoader loader, int insetSide) {
+            mLoader = checkNotNull(loader);
             mInsetSide = insetSide;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link UidUsageSummary}, or {@code null} to clear list.
+         * The summary is already collapsed and sorted, so this only creates
+         * the list items, and does nothing if the list would not change.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
+        public void bindSummary(UidUsageSummary summary) {
+            if (summary == null ? mSummary == null : summary.sameAs(mSummary)) {
+                return;
             }
+            mSummary = summary;
 
-            for (int uid : restrictedUids) {
-                // Only splice in restricted state for current user
-                if (UserHandle.getUserId(uid) != currentUserId) continue;
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+            final int size = summary != null ? summary.size : 0;
+            final ArrayList<AppItem> items = new ArrayList<AppItem>(size);
+            for (int i = 0; i < size; i++) {
+                final AppItem item = new AppItem(summary.keys[i]);
+                item.total = summary.totals[i];
+                item.restricted = summary.restricted[i];
+                final int uidCount = summary.getUidCount(i);
+                for (int j = 0; j < uidCount; j++) {
+                    item.addUid(summary.getUid(i, j));
                 }
-                item.restricted = true;
+                items.add(item);
             }
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            mItems = items;
+            mLargest = summary != null ? summary.getLargest() : 0;
             notifyDataSetChanged();
         }
 
@@ -1581,7 +1551,7 @@ public class DataUsageSummary extends Fragment {
 
             // kick off async load of app details
             final AppItem item = mItems.get(position);
-            UidDetailTask.bindView(mProvider, item, convertView);
+            mLoader.bindView(item.key, convertView);
 
             if (item.restricted && item.total <= 0) {
                 text1.setText(R.string.data_usage_app_restricted);
@@ -2139,66 +2109,6 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
-     */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
-        private final View mTarget;
-
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
-            mTarget = checkNotNull(target);
-        }
-
-        public static void bindView(
-                UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
-            }
-
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
-            }
-        }
-
-        private static void bindView(UidDetail detail, View target) {
-            final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
-            final TextView title = (TextView) target.findViewById(android.R.id.title);
-
-            if (detail != null) {
-                icon.setImageDrawable(detail.icon);
-                title.setText(detail.label);
-            } else {
-                icon.setImageDrawable(null);
-                title.setText(null);
-            }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
-
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
-        }
-
-        @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
-        }
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.drawable.AppIconCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * On-disk snapshot of the label, size and icon information of every
+ * {@link AppEntry}, so that the application list can be shown right away
+ * on a cold start instead of going back to the package manager for every
+ * package.  The records file is memory-mapped when loaded and each record is
+ * only decoded, and checked against the current apk, when its entry is
+ * created.  Icons are kept as one PNG per package next to it, so that saving
+ * new sizes only re-encodes the icons that changed.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+    static final String ICON_DIR_NAME = "app_entry_icons";
+
+    private static final int MAGIC = 0x41505053;
+    private static final int VERSION = 2;
+
+    /** Icon file of one package, valid while its apk is unchanged. */
+    private static class SavedIcon {
+        // apk modification time the icon was saved for.
+        final long stamp;
+        // Bitmap that was encoded, to tell whether the entry's icon changed.
+        WeakReference<Bitmap> bitmap;
+
+        SavedIcon(long stamp, Bitmap bitmap) {
+            this.stamp = stamp;
+            this.bitmap = new WeakReference<Bitmap>(bitmap);
+        }
+    }
+
+    private final Resources mRes;
+    private final AtomicFile mFile;
+    private final File mIconDir;
+    private final AppIconCache mIconCache;
+
+    // Synchronize on 'this' for the following.
+    private String mConfigKey;
+    private MappedByteBuffer mBuffer;
+    private final HashMap<String, Integer> mOffsets = new HashMap<String, Integer>();
+    private final HashMap<String, SavedIcon> mSavedIcons = new HashMap<String, SavedIcon>();
+
+    AppEntrySnapshot(Context context) {
+        this(context, context.getCacheDir());
+    }
+
+    AppEntrySnapshot(Context context, File dir) {
+        mRes = context.getResources();
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+        mIconDir = new File(dir, ICON_DIR_NAME);
+        mIconCache = AppIconCache.getInstance(context);
+        mConfigKey = configKey(mRes);
+    }
+
+    /**
+     * Everything that affects how labels and icons are resolved; a snapshot
+     * taken under a different key can not be used.
+     */
+    static String configKey(Resources res) {
+        return res.getConfiguration().locale + "/" + res.getDisplayMetrics().densityDpi
+                + "/" + res.getConfiguration().uiMode;
+    }
+
+    /**
+     * Called when the interesting configuration changed.  Drops any loaded
+     * records that were taken under a different configuration.
+     */
+    synchronized void setConfigKey(String key) {
+        if (!key.equals(mConfigKey)) {
+            mConfigKey = key;
+            release();
+            mSavedIcons.clear();
+        }
+    }
+
+    /**
+     * Maps the snapshot file and indexes its records by package name.  Only
+     * record offsets are read here; the records themselves are decoded lazily
+     * by {@link #restore}.
+     */
+    synchronized void load() {
+        release();
+        mSavedIcons.clear();
+        final File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            final String configKey = readString(buffer);
+            if (!mConfigKey.equals(configKey)) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot for config " + configKey);
+                return;
+            }
+            final int count = buffer.getInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = readString(buffer);
+                final long iconStamp = buffer.getLong();
+                final int length = buffer.getInt();
+                if (iconStamp != 0) {
+                    mSavedIcons.put(packageName, new SavedIcon(iconStamp, null));
+                }
+                mOffsets.put(packageName, buffer.position());
+                buffer.position(buffer.position() + length);
+            }
+            mBuffer = buffer;
+            if (DEBUG) Log.i(TAG, "Loaded snapshot with " + count + " entries");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            mOffsets.clear();
+            mSavedIcons.clear();
+        } catch (RuntimeException e) {
+            // Truncated or otherwise corrupt file; it will be rewritten.
+            Log.w(TAG, "Discarding corrupt " + file, e);
+            mOffsets.clear();
+            mSavedIcons.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills in the label, sizes and icon of a newly created entry from its
+     * snapshot record, if there is one and its apk has not changed since.
+     * Each record is used at most once.  Must be called before the entry is
+     * published to other threads.
+     *
+     * @return true if the entry was restored.
+     */
+    synchronized boolean restore(AppEntry entry) {
+        if (mBuffer == null) {
+            return false;
+        }
+        final Integer offset = mOffsets.remove(entry.info.packageName);
+        if (offset == null) {
+            return false;
+        }
+        try {
+            final ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(offset);
+            final long modified = buffer.getLong();
+            final String sourceDir = readString(buffer);
+            if (modified != entry.apkFile.lastModified()
+                    || !sourceDir.equals(entry.info.sourceDir)) {
+                if (DEBUG) Log.i(TAG, "Stale snapshot for " + entry.info.packageName);
+                return false;
+            }
+            final String label = readString(buffer);
+            final String normalizedLabel = readString(buffer);
+            entry.size = buffer.getLong();
+            entry.internalSize = buffer.getLong();
+            entry.externalSize = buffer.getLong();
+            entry.cacheSize = buffer.getLong();
+            entry.codeSize = buffer.getLong();
+            entry.dataSize = buffer.getLong();
+            entry.externalCodeSize = buffer.getLong();
+            entry.externalDataSize = buffer.getLong();
+            entry.externalCacheSize = buffer.getLong();
+            final SavedIcon saved = mSavedIcons.get(entry.info.packageName);
+            if (saved != null && saved.stamp == modified) {
+                final Bitmap bitmap = BitmapFactory.decodeFile(
+                        getIconFile(entry.info.packageName).getPath());
+                if (bitmap != null) {
+                    entry.icon = new BitmapDrawable(mRes, bitmap);
+                    saved.bitmap = new WeakReference<Bitmap>(bitmap);
+                }
+            }
+            entry.label = label;
+            entry.normalizedLabel = normalizedLabel;
+            entry.mounted = true;
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding corrupt snapshot", e);
+            release();
+            return false;
+        }
+    }
+
+    /**
+     * Writes a new snapshot of the given entries.  Called on the background
+     * thread; the previously mapped snapshot is released since every entry
+     * it could restore is now in memory.  Only icons that changed since they
+     * were last saved are encoded again.
+     */
+    void save(ArrayList<AppEntry> entries) {
+        final String configKey;
+        synchronized (this) {
+            configKey = mConfigKey;
+        }
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(records);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        final HashSet<String> iconFiles = new HashSet<String>();
+        FileOutputStream fos = null;
+        try {
+            int count = 0;
+            for (int i=0; i<entries.size(); i++) {
+                final AppEntry entry = entries.get(i);
+                final ByteArrayOutputStream record = new ByteArrayOutputStream();
+                final DataOutputStream rout = new DataOutputStream(record);
+                final String packageName;
+                final long modified;
+                final Drawable drawable;
+                synchronized (entry) {
+                    if (entry.label == null || !entry.mounted) {
+                        continue;
+                    }
+                    packageName = entry.info.packageName;
+                    modified = entry.apkFile.lastModified();
+                    rout.writeLong(modified);
+                    writeString(rout, entry.info.sourceDir);
+                    writeString(rout, entry.label);
+                    writeString(rout, entry.getNormalizedLabel());
+                    rout.writeLong(entry.size);
+                    rout.writeLong(entry.internalSize);
+                    rout.writeLong(entry.externalSize);
+                    rout.writeLong(entry.cacheSize);
+                    rout.writeLong(entry.codeSize);
+                    rout.writeLong(entry.dataSize);
+                    rout.writeLong(entry.externalCodeSize);
+                    rout.writeLong(entry.externalDataSize);
+                    rout.writeLong(entry.externalCacheSize);
+                    drawable = entry.icon;
+                }
+                rout.flush();
+
+                final long iconStamp = saveIcon(packageName, drawable, modified, png);
+                if (iconStamp != 0) {
+                    iconFiles.add(getIconFile(packageName).getName());
+                }
+                writeString(out, packageName);
+                out.writeLong(iconStamp);
+                out.writeInt(record.size());
+                record.writeTo(out);
+                count++;
+            }
+            out.flush();
+
+            fos = mFile.startWrite();
+            final DataOutputStream fout = new DataOutputStream(fos);
+            fout.writeInt(MAGIC);
+            fout.writeInt(VERSION);
+            writeString(fout, configKey);
+            fout.writeInt(count);
+            records.writeTo(fout);
+            fout.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote snapshot with " + count + " entries");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+
+        // Drop icons of packages that are gone.
+        final String[] names = mIconDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!iconFiles.contains(name)) {
+                    new File(mIconDir, name).delete();
+                }
+            }
+        }
+        synchronized (this) {
+            release();
+        }
+    }
+
+    /**
+     * Makes sure the icon file of a package holds the given icon, encoding
+     * it only if it is not the one saved last for the same apk.  An icon
+     * that is not loaded right now keeps the file saved for the same apk.
+     *
+     * @return the apk modification time the icon file is valid for, or 0 if
+     * there is no usable icon file.
+     */
+    private long saveIcon(String packageName, Drawable drawable, long modified,
+            ByteArrayOutputStream png) {
+        final SavedIcon saved;
+        synchronized (this) {
+            saved = mSavedIcons.get(packageName);
+        }
+        final boolean current = saved != null && saved.stamp == modified;
+        final Bitmap bitmap = mIconCache.renderIcon(drawable);
+        if (bitmap == null) {
+            return current ? modified : 0;
+        }
+        if (current && saved.bitmap.get() == bitmap) {
+            return modified;
+        }
+
+        png.reset();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+        mIconDir.mkdirs();
+        final AtomicFile file = new AtomicFile(getIconFile(packageName));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            png.writeTo(fos);
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write icon of " + packageName, e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+            synchronized (this) {
+                mSavedIcons.remove(packageName);
+            }
+            return 0;
+        }
+        if (DEBUG) Log.i(TAG, "Wrote icon of " + packageName);
+        synchronized (this) {
+            mSavedIcons.put(packageName, new SavedIcon(modified, bitmap));
+        }
+        return modified;
+    }
+
+    File getIconFile(String packageName) {
+        return new File(mIconDir, packageName + ".png");
+    }
+
+    private void release() {
+        mBuffer = null;
+        mOffsets.clear();
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
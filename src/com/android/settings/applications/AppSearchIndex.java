@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Word prefix index over the normalized labels and package names of all
+ * {@link AppEntry} objects, used for type-to-filter in the application list.
+ * Each entry contributes the suffixes of its label starting at every word,
+ * and the suffixes of its package name starting at every segment, so a
+ * prefix lookup is a binary search over the sorted suffixes.
+ */
+class AppSearchIndex {
+    private final HashMap<AppEntry, String[]> mEntryTokens = new HashMap<AppEntry, String[]>();
+
+    // All tokens of mEntryTokens, kept sorted as entries come and go.
+    private final ArrayList<Token> mTokens = new ArrayList<Token>();
+
+    private static final class Token {
+        final String token;
+        final AppEntry entry;
+
+        Token(String token, AppEntry entry) {
+            this.token = token;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Adds the entry, or re-indexes it if its label changed.
+     */
+    synchronized void put(AppEntry entry) {
+        final String[] tokens = tokenize(entry.getNormalizedLabel(),
+                entry.info.packageName.toLowerCase());
+        final String[] oldTokens = mEntryTokens.put(entry, tokens);
+        if (oldTokens != null) {
+            if (Arrays.equals(oldTokens, tokens)) {
+                return;
+            }
+            removeTokensLocked(entry, oldTokens);
+        }
+        for (int i=0; i<tokens.length; i++) {
+            mTokens.add(lowerBoundLocked(tokens[i]), new Token(tokens[i], entry));
+        }
+    }
+
+    synchronized void remove(AppEntry entry) {
+        final String[] tokens = mEntryTokens.remove(entry);
+        if (tokens != null) {
+            removeTokensLocked(entry, tokens);
+        }
+    }
+
+    synchronized void clear() {
+        mEntryTokens.clear();
+        mTokens.clear();
+    }
+
+    /**
+     * Returns every entry with a label word or package name segment starting
+     * with the given normalized prefix.
+     */
+    synchronized HashSet<AppEntry> lookup(String prefix) {
+        final HashSet<AppEntry> result = new HashSet<AppEntry>();
+        for (int i=lowerBoundLocked(prefix); i<mTokens.size()
+                && mTokens.get(i).token.startsWith(prefix); i++) {
+            result.add(mTokens.get(i).entry);
+        }
+        return result;
+    }
+
+    private void removeTokensLocked(AppEntry entry, String[] tokens) {
+        for (int i=0; i<tokens.length; i++) {
+            for (int j=lowerBoundLocked(tokens[i]); j<mTokens.size()
+                    && mTokens.get(j).token.equals(tokens[i]); j++) {
+                if (mTokens.get(j).entry == entry) {
+                    mTokens.remove(j);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first token not less than the given string.
+     */
+    private int lowerBoundLocked(String str) {
+        int low = 0;
+        int high = mTokens.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens.get(mid).token.compareTo(str) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String[] tokenize(String label, String packageName) {
+        final ArrayList<String> tokens = new ArrayList<String>();
+        addSuffixes(tokens, label, ' ');
+        addSuffixes(tokens, packageName, '.');
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    private static void addSuffixes(ArrayList<String> tokens, String str, char separator) {
+        tokens.add(str);
+        int index = str.indexOf(separator);
+        while (index >= 0) {
+            if (index + 1 < str.length()) {
+                tokens.add(str.substring(index + 1));
+            }
+            index = str.indexOf(separator, index + 1);
+        }
+    }
+}
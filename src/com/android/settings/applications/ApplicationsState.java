@@ -22,15 +22,22 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.drawable.AppIconCache;
+
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -40,17 +47,33 @@ import java.util.regex.Pattern;
 public class ApplicationsState {
     static final String TAG = "ApplicationsState";
     static final boolean DEBUG = false;
-    static final boolean DEBUG_LOCKING = false;
 
     public static interface Callbacks {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        // The last rebuilt list was updated in place: entry moved from
+        // oldIndex (-1 if it was added) to newIndex (-1 if it was removed).
+        public void onRebuildEntryChanged(AppEntry entry, int oldIndex, int newIndex);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
     }
 
+    static final class ListChange {
+        final AppEntry entry;
+        final int oldIndex;
+        final int newIndex;
+        final int generation;
+
+        ListChange(AppEntry entry, int oldIndex, int newIndex, int generation) {
+            this.entry = entry;
+            this.oldIndex = oldIndex;
+            this.newIndex = newIndex;
+            this.generation = generation;
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +82,13 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package size requests kept in flight at once.
+    static final int DEFAULT_SIZE_LOAD_WINDOW = 4;
+    // How long to wait for a single package size before moving on.
+    static final long SIZE_LOAD_TIMEOUT = 5*1000;
+    // How many recently displayed entries to compute sizes for first.
+    static final int MAX_PRIORITY_SIZE_ENTRIES = 16;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -104,6 +134,16 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
+        // Sort key for label, created from the current collator when
+        // the entry is (re)labeled.
+        CollationKey labelKey;
+
+        void ensureLabelKey(Collator collator) {
+            if (labelKey == null) {
+                labelKey = collator.getCollationKey(label);
+            }
+        }
+
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
         Drawable icon;
@@ -113,19 +153,29 @@ public class ApplicationsState {
         boolean sizeStale;
         long sizeLoadStart;
 
+        // Whether the entry is in mPrioritySizeEntries.  Only written with
+        // the mEntriesMap monitor held, but read without it.
+        volatile boolean sizePrioritized;
+
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntrySnapshot snapshot) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            if (snapshot == null || !snapshot.restore(this)) {
+                ensureLabel(context);
+            }
         }
         
-        void ensureLabel(Context context) {
+        /**
+         * @return true if the label text changed.
+         */
+        boolean ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                final String oldLabel = this.label;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -134,13 +184,20 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                if (this.label.equals(oldLabel)) {
+                    return false;
+                }
+                this.labelKey = null;
+                this.normalizedLabel = null;
+                return true;
             }
+            return false;
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info, pm);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +209,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info, pm);
                     return true;
                 }
             }
@@ -160,8 +217,27 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Orders entries by label using their precomputed collation keys,
+     * falling back to their ids so that no two entries compare equal.
+     */
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        int result;
+        if (object1.labelKey != null && object2.labelKey != null) {
+            result = object1.labelKey.compareTo(object2.labelKey);
+        } else {
+            result = sFallbackCollator.compare(object1.label, object2.label);
+        }
+        if (result != 0) {
+            return result;
+        }
+        return object1.id < object2.id ? -1 : (object1.id == object2.id ? 0 : 1);
+    }
+
+    // Replaced along with mCollator when the locale changes.
+    private static volatile Collator sFallbackCollator = Collator.getInstance();
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +247,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
@@ -266,21 +339,39 @@ public class ApplicationsState {
     final Context mContext;
     final PackageManager mPm;
     final int mRetrieveFlags;
+    // Creates AppEntry.labelKey; replaced when the locale changes.
+    volatile Collator mCollator = Collator.getInstance();
+    final AppEntrySnapshot mSnapshot;
+    final AppSearchIndex mSearchIndex = new AppSearchIndex();
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
     boolean mHaveDisabledApps;
 
+    // All entries.  These can be read without any lock; they are only
+    // modified with the mEntriesMap monitor held.
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
+    final CopyOnWriteArrayList<AppEntry> mAppEntries = new CopyOnWriteArrayList<AppEntry>();
+    final AtomicLong mCurId = new AtomicLong(1);
+    volatile boolean mSnapshotDirty;
+    // Bumped whenever entries are dropped, so that entries created without
+    // the lock for a package removed meanwhile are not published.
+    volatile int mEntriesGeneration;
+
+    // Waits to acquire the mEntriesMap monitor, per call site.
+    final LockContention mLockContention = new LockContention(TAG);
+
     // Information about all applications.  Synchronize on mEntriesMap
     // to protect access to these.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
-    final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    final HashSet<String> mTimedOutSizePkgs = new HashSet<String>();
+    final ArrayList<AppEntry> mPrioritySizeEntries = new ArrayList<AppEntry>();
+    int mSizeLoadWindow = DEFAULT_SIZE_LOAD_WINDOW;
     boolean mSessionsChanged;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
@@ -365,6 +456,7 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_LIST_CHANGED = 7;
 
         @Override
         public void handleMessage(Message msg) {
@@ -373,7 +465,41 @@ public class ApplicationsState {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        synchronized (s.mRebuildSync) {
+                            s.mUiList = s.mLastAppList;
+                            s.mUiGeneration = s.mListGeneration;
+                        }
+                        s.mCallbacks.onRebuildComplete(s.mUiList);
+                    }
+                } break;
+                case MSG_LIST_CHANGED: {
+                    Session s = (Session)msg.obj;
+                    ArrayList<ListChange> changes;
+                    synchronized (s.mRebuildSync) {
+                        changes = new ArrayList<ListChange>(s.mPendingChanges);
+                        s.mPendingChanges.clear();
+                    }
+                    if (!mActiveSessions.contains(s)) {
+                        // The list will be rebuilt on resume.
+                        s.mUiGeneration = -1;
+                        break;
+                    }
+                    for (int i=0; i<changes.size(); i++) {
+                        ListChange change = changes.get(i);
+                        if (s.mUiList == null || change.generation != s.mUiGeneration) {
+                            // Change to a list that has since been replaced.
+                            continue;
+                        }
+                        synchronized (s.mUiList) {
+                            if (change.oldIndex >= 0) {
+                                s.mUiList.remove(change.oldIndex);
+                            }
+                            if (change.newIndex >= 0) {
+                                s.mUiList.add(change.newIndex, change.entry);
+                            }
+                        }
+                        s.mCallbacks.onRebuildEntryChanged(change.entry,
+                                change.oldIndex, change.newIndex);
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -426,10 +552,20 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new AppEntrySnapshot(mContext);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SNAPSHOT);
+
+        // Entries reload their icons from the shared cache when next bound.
+        AppIconCache.getInstance(mContext).addTrimListener(new AppIconCache.TrimListener() {
+            @Override
+            public void onIconsTrimmed() {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_TRIM_ICONS);
+            }
+        });
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -475,33 +611,46 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        int mListGeneration;
+        final ArrayList<ListChange> mPendingChanges = new ArrayList<ListChange>();
+
+        // The last published list, kept sorted as entries are added, removed
+        // or change size.  Only touched by the background thread.
+        AppFilter mListFilter;
+        Comparator<AppEntry> mListComparator;
+        ArrayList<AppEntry> mWorkingList;
+
+        // The copy of the list handed to the callbacks, updated in place
+        // from mPendingChanges.  Only touched by the main thread.
+        ArrayList<AppEntry> mUiList;
+        int mUiGeneration = -1;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
         public void resume() {
-            if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+            final long lockStart = mLockContention.start();
             synchronized (mEntriesMap) {
+                mLockContention.acquired("resume", lockStart);
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
                     doResumeIfNeededLocked();
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
         }
 
         public void pause() {
-            if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
+            final long lockStart = mLockContention.start();
             synchronized (mEntriesMap) {
+                mLockContention.acquired("pause", lockStart);
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
                     mBackgroundHandler.removeMessages(BackgroundHandler.MSG_REBUILD_LIST, this);
                     doPauseIfNeededLocked();
                 }
-                if (DEBUG_LOCKING) Log.v(TAG, "...pause releasing lock");
             }
         }
 
@@ -538,6 +687,10 @@ public class ApplicationsState {
 
                 mRebuildAsync = true;
 
+                if (mRebuildResult != null) {
+                    mUiList = mRebuildResult;
+                    mUiGeneration = mListGeneration;
+                }
                 return mRebuildResult;
             }
         }
@@ -573,24 +726,30 @@ public class ApplicationsState {
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    AppEntry entry = obtainLabeledEntry(info);
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    if (entry != null) {
                         filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
                 }
             }
 
             Collections.sort(filteredApps, comparator);
 
+            // Any list published earlier is about to be replaced; stop
+            // maintaining it.
+            mWorkingList = null;
+            ArrayList<AppEntry> uiList = new ArrayList<AppEntry>(filteredApps);
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
+                    mLastAppList = uiList;
+                    mListGeneration++;
+                    mPendingChanges.clear();
+                    mWorkingList = filteredApps;
+                    mListFilter = filter;
+                    mListComparator = comparator;
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = uiList;
                         mRebuildSync.notifyAll();
                     } else {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
@@ -605,6 +764,116 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Applies a change of the given package to the last published list,
+         * moving, inserting or removing just its entry instead of rebuilding
+         * and re-sorting the whole list.  Called on the background thread;
+         * info is null if the package is gone.
+         */
+        void handleEntryChanged(String packageName, ApplicationInfo info) {
+            if (mWorkingList == null) {
+                return;
+            }
+            synchronized (mEntriesMap) {
+                if (!mResumed) {
+                    // Changes are not delivered while paused, so the list
+                    // has to be rebuilt from scratch when resumed.
+                    mWorkingList = null;
+                    return;
+                }
+            }
+
+            int oldIndex = -1;
+            for (int i=0; i<mWorkingList.size(); i++) {
+                if (mWorkingList.get(i).info.packageName.equals(packageName)) {
+                    oldIndex = i;
+                    break;
+                }
+            }
+            AppEntry entry = null;
+            if (info != null && (mListFilter == null || mListFilter.filterApp(info))) {
+                entry = obtainLabeledEntry(info);
+            }
+
+            AppEntry oldEntry = null;
+            if (oldIndex >= 0) {
+                oldEntry = mWorkingList.remove(oldIndex);
+            }
+            int newIndex = -1;
+            if (entry != null) {
+                if (mListComparator != null) {
+                    newIndex = Collections.binarySearch(mWorkingList, entry, mListComparator);
+                    if (newIndex < 0) {
+                        newIndex = -newIndex - 1;
+                    }
+                } else {
+                    newIndex = oldIndex >= 0 ? oldIndex : mWorkingList.size();
+                }
+                mWorkingList.add(newIndex, entry);
+                if (mListComparator != null && !isSortedAround(newIndex)) {
+                    // Other entries changed their sort order too and their
+                    // updates have not run yet, so the binary search was
+                    // done on a list that is no longer sorted.  Re-sort and
+                    // publish the whole list instead.
+                    republishWorkingList();
+                    return;
+                }
+            }
+            if (oldIndex == newIndex && oldEntry == entry) {
+                // Still in the same place; nothing to report.
+                return;
+            }
+
+            synchronized (mRebuildSync) {
+                if (oldIndex >= 0 && oldEntry != entry && newIndex >= 0) {
+                    // Replaced by a new entry object: report as remove + add.
+                    mPendingChanges.add(new ListChange(oldEntry, oldIndex, -1,
+                            mListGeneration));
+                    mPendingChanges.add(new ListChange(entry, -1, newIndex,
+                            mListGeneration));
+                } else {
+                    mPendingChanges.add(new ListChange(entry != null ? entry : oldEntry,
+                            oldIndex, newIndex, mListGeneration));
+                }
+                if (!mMainHandler.hasMessages(MainHandler.MSG_LIST_CHANGED, this)) {
+                    Message msg = mMainHandler.obtainMessage(
+                            MainHandler.MSG_LIST_CHANGED, this);
+                    mMainHandler.sendMessage(msg);
+                }
+            }
+        }
+
+        boolean isSortedAround(int index) {
+            final AppEntry entry = mWorkingList.get(index);
+            if (index > 0 && mListComparator.compare(mWorkingList.get(index-1), entry) > 0) {
+                return false;
+            }
+            if (index < mWorkingList.size()-1
+                    && mListComparator.compare(entry, mWorkingList.get(index+1)) > 0) {
+                return false;
+            }
+            return true;
+        }
+
+        void republishWorkingList() {
+            Collections.sort(mWorkingList, mListComparator);
+            ArrayList<AppEntry> uiList = new ArrayList<AppEntry>(mWorkingList);
+            synchronized (mRebuildSync) {
+                if (mRebuildRequested) {
+                    // The requested rebuild will publish a fresh list.
+                    return;
+                }
+                mLastAppList = uiList;
+                mListGeneration++;
+                mPendingChanges.clear();
+                if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
+                    Message msg = mMainHandler.obtainMessage(
+                            MainHandler.MSG_REBUILD_COMPLETE, this);
+                    mMainHandler.sendMessage(msg);
+                }
+            }
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -638,8 +907,13 @@ public class ApplicationsState {
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
+            mEntriesGeneration++;
             mEntriesMap.clear();
             mAppEntries.clear();
+            mSearchIndex.clear();
+            mSnapshot.setConfigKey(AppEntrySnapshot.configKey(mContext.getResources()));
+            mCollator = Collator.getInstance();
+            sFallbackCollator = Collator.getInstance();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,7 +938,8 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
+        mTimedOutSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -688,24 +963,26 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        mLockContention.report();
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
+        ApplicationInfo info = null;
+        final long lockStart = mLockContention.start();
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
+            mLockContention.acquired("getEntry", lockStart);
+            for (int i=0; i<mApplications.size(); i++) {
+                if (packageName.equals(mApplications.get(i).packageName)) {
+                    info = mApplications.get(i);
+                    break;
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return info != null ? obtainEntry(info) : null;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -718,25 +995,92 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
+        if (mEntriesMap.get(packageName) != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+        }
+    }
+
+    /**
+     * Asks for the size of the given entry to be computed ahead of the
+     * others, typically because it is currently displayed.
+     */
+    void prioritizeSize(AppEntry entry) {
+        // Called for every row that is bound, so stay off the lock when the
+        // size is known or the entry is already queued.
+        if ((entry.size != SIZE_UNKNOWN && !entry.sizeStale) || entry.sizePrioritized) {
+            return;
+        }
+        final long lockStart = mLockContention.start();
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+            mLockContention.acquired("prioritizeSize", lockStart);
+            if (entry.sizePrioritized || !needsSizeLocked(entry)) {
+                return;
+            }
+            entry.sizePrioritized = true;
+            mPrioritySizeEntries.add(entry);
+            if (mPrioritySizeEntries.size() > MAX_PRIORITY_SIZE_ENTRIES) {
+                mPrioritySizeEntries.remove(0).sizePrioritized = false;
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
         }
+        // Start on it right away if the request window has room.
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
     }
 
-    long sumCacheSizes() {
-        long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
+    /**
+     * Sets how many package size requests may be outstanding at once.
+     */
+    void setSizeLoadWindow(int window) {
         synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
+            mSizeLoadWindow = Math.max(1, window);
+        }
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+    }
+
+    boolean needsSizeLocked(AppEntry entry) {
+        if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+            return false;
+        }
+        final String pkg = entry.info.packageName;
+        return !mComputingSizePkgs.contains(pkg) && !mTimedOutSizePkgs.contains(pkg);
+    }
+
+    AppEntry nextEntryNeedingSizeLocked() {
+        // Most recently displayed entries first.
+        for (int i=mPrioritySizeEntries.size()-1; i>=0; i--) {
+            AppEntry entry = mPrioritySizeEntries.remove(i);
+            entry.sizePrioritized = false;
+            if (mEntriesMap.get(entry.info.packageName) == entry && needsSizeLocked(entry)) {
+                return entry;
+            }
+        }
+        for (int i=0; i<mAppEntries.size(); i++) {
+            AppEntry entry = mAppEntries.get(i);
+            if (needsSizeLocked(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    void expireSizeRequestsLocked(long now) {
+        Iterator<String> it = mComputingSizePkgs.iterator();
+        while (it.hasNext()) {
+            String pkg = it.next();
+            AppEntry entry = mEntriesMap.get(pkg);
+            if (entry == null) {
+                it.remove();
+            } else if (entry.sizeLoadStart < (now-SIZE_LOAD_TIMEOUT)) {
+                Log.w(TAG, "Timed out computing size of " + pkg);
+                it.remove();
+                mTimedOutSizePkgs.add(pkg);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        }
+    }
+
+    long sumCacheSizes() {
+        long sum = 0;
+        for (AppEntry entry : mAppEntries) {
+            sum += entry.cacheSize;
         }
         return sum;
     }
@@ -751,20 +1095,21 @@ public class ApplicationsState {
     }
 
     void addPackage(String pkgName) {
+        // A package added again may come with a different icon.
+        AppIconCache.getInstance(mContext).invalidate(pkgName);
         try {
+            final long lockStart = mLockContention.start();
             synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
+                mLockContention.acquired("addPackage", lockStart);
                 if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
                 if (!mResumed) {
                     // If we are not resumed, we will do a full query the
                     // next time we resume, so there is no reason to do work
                     // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
                     return;
                 }
                 if (indexOfApplicationInfoLocked(pkgName) >= 0) {
                     if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
                     return;
                 }
                 ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
@@ -776,32 +1121,40 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                        BackgroundHandler.MSG_UPDATE_ENTRY, pkgName));
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
             }
         } catch (NameNotFoundException e) {
         }
     }
 
     void removePackage(String pkgName) {
+        AppIconCache.getInstance(mContext).invalidate(pkgName);
+        final long lockStart = mLockContention.start();
         synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
+            mLockContention.acquired("removePackage", lockStart);
             int idx = indexOfApplicationInfoLocked(pkgName);
             if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
             if (idx >= 0) {
+                mEntriesGeneration++;
                 AppEntry entry = mEntriesMap.get(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSearchIndex.remove(entry);
+                    mSnapshotDirty = true;
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                        BackgroundHandler.MSG_UPDATE_ENTRY, pkgName));
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -815,7 +1168,6 @@ public class ApplicationsState {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage releasing lock");
         }
     }
 
@@ -828,16 +1180,91 @@ public class ApplicationsState {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
+            entry = createEntry(info);
+            publishEntryLocked(entry);
         } else if (entry.info != info) {
             entry.info = info;
         }
         return entry;
     }
 
+    /**
+     * Like {@link #getEntryLocked}, but a missing entry -- which means
+     * loading its label -- is created without holding the mEntriesMap
+     * monitor, so that readers on the main thread are not held up.
+     * Returns null if the package was removed while its entry was created.
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
+        AppEntry entry = mEntriesMap.get(info.packageName);
+        if (entry == null) {
+            final int generation = mEntriesGeneration;
+            AppEntry newEntry = createEntry(info);
+            final long lockStart = mLockContention.start();
+            synchronized (mEntriesMap) {
+                mLockContention.acquired("obtainEntry", lockStart);
+                entry = mEntriesMap.get(info.packageName);
+                if (entry == null) {
+                    if (generation != mEntriesGeneration
+                            || indexOfApplicationInfoLocked(info.packageName) < 0) {
+                        if (DEBUG) Log.i(TAG, "Dropping entry of removed " + info.packageName);
+                        return null;
+                    }
+                    publishEntryLocked(newEntry);
+                    return newEntry;
+                }
+            }
+        }
+        if (entry.info != info) {
+            synchronized (mEntriesMap) {
+                if (mEntriesMap.get(info.packageName) == entry) {
+                    entry.info = info;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry with its label and sort key loaded; the label is
+     * reloaded under the entry's own monitor only.  Returns null if the
+     * package was removed meanwhile.
+     */
+    AppEntry obtainLabeledEntry(ApplicationInfo info) {
+        AppEntry entry = obtainEntry(info);
+        if (entry == null) {
+            return null;
+        }
+        boolean relabeled;
+        synchronized (entry) {
+            relabeled = entry.ensureLabel(mContext);
+            entry.ensureLabelKey(mCollator);
+        }
+        if (relabeled) {
+            mSearchIndex.put(entry);
+        }
+        return entry;
+    }
+
+    private AppEntry createEntry(ApplicationInfo info) {
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        AppEntry entry = new AppEntry(mContext, info, mCurId.getAndIncrement(), mSnapshot);
+        if (entry.size != SIZE_UNKNOWN) {
+            // Sizes restored from the snapshot; they are still stale
+            // and will be recomputed, but can be shown meanwhile.
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+        }
+        return entry;
+    }
+
+    private void publishEntryLocked(AppEntry entry) {
+        mEntriesMap.put(entry.info.packageName, entry);
+        mAppEntries.add(entry);
+        mSearchIndex.put(entry);
+        mSnapshotDirty = true;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -872,62 +1299,69 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_LOAD_SNAPSHOT = 5;
+        static final int MSG_SAVE_SNAPSHOT = 6;
+        static final int MSG_SIZE_TIMEOUT = 7;
+        static final int MSG_UPDATE_ENTRY = 8;
+        static final int MSG_TRIM_ICONS = 9;
+        static final int MSG_RETRY_SIZES = 10;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                            mSnapshotDirty = true;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                        // Re-position the entry in lists sorted by size.
+                        sendMessage(obtainMessage(MSG_UPDATE_ENTRY, stats.packageName));
                     }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
+                final long lockStart = mLockContention.start();
+                synchronized (mEntriesMap) {
+                    mLockContention.acquired("onGetStatsCompleted", lockStart);
+                    mComputingSizePkgs.remove(stats.packageName);
+                    mTimedOutSizePkgs.remove(stats.packageName);
+                }
+                sendEmptyMessage(MSG_LOAD_SIZES);
             }
         };
 
@@ -954,25 +1388,59 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
-                case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                case MSG_UPDATE_ENTRY: {
+                    String pkgName = (String)msg.obj;
+                    ArrayList<Session> sessions;
+                    ApplicationInfo info = null;
                     synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
+                        sessions = new ArrayList<Session>(mSessions);
+                        int idx = indexOfApplicationInfoLocked(pkgName);
+                        if (idx >= 0) {
+                            info = mApplications.get(idx);
+                        }
+                    }
+                    for (int i=0; i<sessions.size(); i++) {
+                        sessions.get(i).handleEntryChanged(pkgName, info);
+                    }
+                } break;
+                case MSG_TRIM_ICONS: {
+                    for (AppEntry entry : mAppEntries) {
+                        synchronized (entry) {
+                            if (entry.mounted) {
+                                entry.icon = null;
                             }
+                        }
+                    }
+                } break;
+                case MSG_LOAD_SNAPSHOT: {
+                    mSnapshot.load();
+                } break;
+                case MSG_SAVE_SNAPSHOT: {
+                    mSnapshot.save(new ArrayList<AppEntry>(mAppEntries));
+                } break;
+                case MSG_LOAD_ENTRIES: {
+                    ArrayList<ApplicationInfo> missing = new ArrayList<ApplicationInfo>(6);
+                    final long lockStart = mLockContention.start();
+                    synchronized (mEntriesMap) {
+                        mLockContention.acquired("MSG_LOAD_ENTRIES", lockStart);
+                        for (int i=0; i<mApplications.size() && missing.size()<6; i++) {
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                missing.add(info);
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    if (missing.size() > 0 && !mRunning) {
+                        mRunning = true;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                        mMainHandler.sendMessage(m);
+                    }
+                    // Labels are loaded without holding the lock.
+                    for (int i=0; i<missing.size(); i++) {
+                        obtainEntry(missing.get(i));
+                    }
+                    int numDone = missing.size();
 
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
@@ -982,25 +1450,24 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    // Icons are loaded holding only the entry's monitor.
+                    for (AppEntry entry : mAppEntries) {
+                        if (numDone >= 2) {
+                            break;
+                        }
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1013,34 +1480,54 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
+                case MSG_RETRY_SIZES: {
+                    final long lockStart = mLockContention.start();
+                    synchronized (mEntriesMap) {
+                        mLockContention.acquired("MSG_RETRY_SIZES", lockStart);
+                        mTimedOutSizePkgs.clear();
+                    }
+                    sendEmptyMessage(MSG_LOAD_SIZES);
+                } break;
+                case MSG_SIZE_TIMEOUT:
                 case MSG_LOAD_SIZES: {
+                    final long lockStart = mLockContention.start();
                     synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
+                        mLockContention.acquired("MSG_LOAD_SIZES", lockStart);
+                        final long now = SystemClock.uptimeMillis();
+                        expireSizeRequestsLocked(now);
+
+                        while (mComputingSizePkgs.size() < mSizeLoadWindow) {
+                            AppEntry entry = nextEntryNeedingSizeLocked();
+                            if (entry == null) {
+                                break;
+                            }
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
+                            }
+                            entry.sizeLoadStart = now;
+                            mComputingSizePkgs.add(entry.info.packageName);
+                            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+                        }
+                        if (mComputingSizePkgs.size() > 0) {
+                            // Come back to give up on requests that never complete.
+                            if (!hasMessages(MSG_SIZE_TIMEOUT)) {
+                                sendEmptyMessageDelayed(MSG_SIZE_TIMEOUT, SIZE_LOAD_TIMEOUT);
+                            }
                             return;
                         }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                        removeMessages(MSG_SIZE_TIMEOUT);
+                        if (mTimedOutSizePkgs.size() > 0) {
+                            // Not every size is known yet; stay running and
+                            // ask the packages that timed out again later.
+                            if (!hasMessages(MSG_RETRY_SIZES)) {
+                                sendEmptyMessageDelayed(MSG_RETRY_SIZES, SIZE_LOAD_TIMEOUT);
                             }
+                            return;
                         }
+
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -1048,7 +1535,12 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                        if (mSnapshotDirty) {
+                            // Everything is loaded; remember it for the next
+                            // cold start.
+                            mSnapshotDirty = false;
+                            sendEmptyMessage(MSG_SAVE_SNAPSHOT);
+                        }
                     }
                 } break;
             }
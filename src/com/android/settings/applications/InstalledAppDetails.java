@@ -592,6 +592,10 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onRebuildEntryChanged(AppEntry entry, int oldIndex, int newIndex) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records, per call site, how long threads waited to acquire a monitor.
+ * Does nothing unless {@link #ENABLED} is set.  Typical use:
+ *
+ * <pre>
+ * final long start = mContention.start();
+ * synchronized (mLock) {
+ *     mContention.acquired("getEntry", start);
+ *     ...
+ * }
+ * </pre>
+ */
+final class LockContention {
+    static final boolean ENABLED = false;
+
+    private final String mTag;
+
+    // Per site: number of acquisitions, total wait, longest wait (ns).
+    private final HashMap<String, long[]> mSites = new HashMap<String, long[]>();
+
+    LockContention(String tag) {
+        mTag = tag;
+    }
+
+    long start() {
+        return ENABLED ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    void acquired(String site, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        final long waited = SystemClock.elapsedRealtimeNanos() - start;
+        synchronized (mSites) {
+            long[] stats = mSites.get(site);
+            if (stats == null) {
+                stats = new long[3];
+                mSites.put(site, stats);
+            }
+            stats[0]++;
+            stats[1] += waited;
+            if (waited > stats[2]) {
+                stats[2] = waited;
+            }
+        }
+    }
+
+    /**
+     * Logs and resets the collected statistics.
+     */
+    void report() {
+        if (!ENABLED) {
+            return;
+        }
+        synchronized (mSites) {
+            for (Map.Entry<String, long[]> e : mSites.entrySet()) {
+                final long[] stats = e.getValue();
+                Log.i(mTag, "lock " + e.getKey() + ": " + stats[0] + " acquisitions, "
+                        + (stats[1] / 1000) + "us waited, max " + (stats[2] / 1000) + "us");
+            }
+            mSites.clear();
+        }
+    }
+}
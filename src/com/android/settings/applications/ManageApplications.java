@@ -80,6 +80,7 @@ import com.android.settings.Utils;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 
 final class CanBeOnSdCardChecker {
@@ -546,11 +547,26 @@ public class ManageApplications extends Fragment implements
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
 
+        // Last result of applyPrefixFilter, narrowed further when the user
+        // extends the prefix.  Also used from the filter thread, so
+        // synchronize on mFilterLock.
+        private final Object mFilterLock = new Object();
+        private ArrayList<ApplicationsState.AppEntry> mLastFilterBase;
+        private String mLastFilterPrefix;
+        private ArrayList<ApplicationsState.AppEntry> mLastFilterResult;
+
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                // The base list is updated in place on the main thread.
+                final ArrayList<ApplicationsState.AppEntry> baseEntries = mBaseEntries;
+                ArrayList<ApplicationsState.AppEntry> entries;
+                synchronized (baseEntries) {
+                    entries = applyPrefixFilter(constraint, baseEntries);
+                    if (entries == baseEntries) {
+                        entries = new ArrayList<ApplicationsState.AppEntry>(baseEntries);
+                    }
+                }
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -677,16 +693,30 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
+                HashSet<ApplicationsState.AppEntry> matches
+                        = mState.mSearchIndex.lookup(prefixStr);
+                ArrayList<ApplicationsState.AppEntry> candidates = origEntries;
+                synchronized (mFilterLock) {
+                    if (mLastFilterBase == origEntries && mLastFilterPrefix != null
+                            && prefixStr.startsWith(mLastFilterPrefix)) {
+                        // Extending the prefix can only narrow the last result.
+                        candidates = mLastFilterResult;
+                    }
+                }
                 ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
+                        = new ArrayList<ApplicationsState.AppEntry>(
+                                Math.min(candidates.size(), matches.size()));
+                for (int i=0; i<candidates.size(); i++) {
+                    ApplicationsState.AppEntry entry = candidates.get(i);
+                    if (matches.contains(entry)) {
                         newEntries.add(entry);
                     }
                 }
+                synchronized (mFilterLock) {
+                    mLastFilterBase = origEntries;
+                    mLastFilterPrefix = prefixStr;
+                    mLastFilterResult = newEntries;
+                }
                 return newEntries;
             }
         }
@@ -713,9 +743,23 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildEntryChanged(AppEntry entry, int oldIndex, int newIndex) {
+            // mBaseEntries has already been updated in place; only the
+            // prefix filtered view needs to follow.
+            synchronized (mFilterLock) {
+                mLastFilterBase = null;
+            }
+            if (mEntries != mBaseEntries) {
+                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            }
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            // Added and removed packages arrive through onRebuildEntryChanged.
         }
 
         @Override
@@ -732,14 +776,8 @@ public class ManageApplications extends Fragment implements
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
+                    // If sorting by size, the entry is moved to its new
+                    // position through onRebuildEntryChanged.
                     mTab.updateStorageUsage();
                     return;
                 }
@@ -748,9 +786,6 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onAllSizesComputed() {
-            if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
-            }
             mTab.updateStorageUsage();
         }
         
@@ -805,6 +840,8 @@ public class ManageApplications extends Fragment implements
                     holder.checkBox.setVisibility(View.GONE);
                 }
             }
+            // Visible rows get their sizes computed before the rest.
+            mState.prioritizeSize(entry);
             mActive.remove(convertView);
             mActive.add(convertView);
             return convertView;
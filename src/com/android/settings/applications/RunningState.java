@@ -17,6 +17,9 @@
 package com.android.settings.applications;
 
 import com.android.settings.R;
+import com.android.settings.drawable.AppIconCache;
+import com.android.settings.net.UidResolver;
+import com.android.settings.net.UidResolver.UidInfo;
 import com.android.settings.users.UserUtils;
 
 import android.app.ActivityManager;
@@ -25,7 +28,6 @@ import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
@@ -323,7 +325,7 @@ public class RunningState {
 
         public Drawable loadIcon(Context context, RunningState state) {
             if (mPackageInfo != null) {
-                return mPackageInfo.loadIcon(state.mPm);
+                return AppIconCache.getInstance(context).getIcon(mPackageInfo, state.mPm);
             }
             return null;
         }
@@ -374,57 +376,33 @@ public class RunningState {
             mProcessName = processName;
         }
         
-        void ensureLabel(PackageManager pm) {
+        void ensureLabel(Context context, PackageManager pm) {
             if (mLabel != null) {
                 return;
             }
             
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(mProcessName,
-                        PackageManager.GET_UNINSTALLED_PACKAGES);
-                if (ai.uid == mUid) {
-                    mDisplayLabel = ai.loadLabel(pm);
-                    mLabel = mDisplayLabel.toString();
-                    mPackageInfo = ai;
-                    return;
-                }
-            } catch (PackageManager.NameNotFoundException e) {
+            final UidInfo uidInfo = UidResolver.getInstance(context).resolve(mUid);
+
+            // Prefer the package the process is named after, if it runs
+            // under this uid.
+            final int index = uidInfo.indexOf(mProcessName);
+            if (index >= 0 && uidInfo.infos[index] != null) {
+                setLabel(uidInfo.labels[index], uidInfo.infos[index]);
+                return;
             }
             
-            // If we couldn't get information about the overall
-            // process, try to find something about the uid.
-            String[] pkgs = pm.getPackagesForUid(mUid);
-            
             // If there is one package with this uid, that is what we want.
-            if (pkgs.length == 1) {
-                try {
-                    ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
-                            PackageManager.GET_UNINSTALLED_PACKAGES);
-                    mDisplayLabel = ai.loadLabel(pm);
-                    mLabel = mDisplayLabel.toString();
-                    mPackageInfo = ai;
-                    return;
-                } catch (PackageManager.NameNotFoundException e) {
-                }
+            final String[] pkgs = uidInfo.packages;
+            if (pkgs != null && pkgs.length == 1 && uidInfo.infos[0] != null) {
+                setLabel(uidInfo.labels[0], uidInfo.infos[0]);
+                return;
             }
             
             // If there are multiple, see if one gives us the official name
             // for this uid.
-            for (String name : pkgs) {
-                try {
-                    PackageInfo pi = pm.getPackageInfo(name, 0);
-                    if (pi.sharedUserLabel != 0) {
-                        CharSequence nm = pm.getText(name,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            mDisplayLabel = nm;
-                            mLabel = nm.toString();
-                            mPackageInfo = pi.applicationInfo;
-                            return;
-                        }
-                    }
-                } catch (PackageManager.NameNotFoundException e) {
-                }
+            if (uidInfo.sharedLabel != null) {
+                setLabel(uidInfo.sharedLabel, uidInfo.infos[uidInfo.sharedLabelIndex]);
+                return;
             }
             
             // If still don't have anything to display, just use the
@@ -439,17 +417,17 @@ public class RunningState {
             }
             
             // Finally... whatever, just pick the first package's name.
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
-                        PackageManager.GET_UNINSTALLED_PACKAGES);
-                mDisplayLabel = ai.loadLabel(pm);
-                mLabel = mDisplayLabel.toString();
-                mPackageInfo = ai;
-                return;
-            } catch (PackageManager.NameNotFoundException e) {
+            if (pkgs != null && pkgs.length > 0 && uidInfo.infos[0] != null) {
+                setLabel(uidInfo.labels[0], uidInfo.infos[0]);
             }
         }
 
+        private void setLabel(CharSequence label, ApplicationInfo ai) {
+            mDisplayLabel = label;
+            mLabel = label.toString();
+            mPackageInfo = ai;
+        }
+
         boolean updateService(Context context, ActivityManager.RunningServiceInfo service) {
             final PackageManager pm = context.getPackageManager();
 
@@ -535,7 +513,7 @@ public class RunningState {
                     proc.mClient = this;
                 }
                 proc.mCurSeq = curSeq;
-                proc.ensureLabel(pm);
+                proc.ensureLabel(context, pm);
                 changed |= proc.buildDependencyChain(context, pm, curSeq);
             }
             
@@ -1007,7 +985,7 @@ public class RunningState {
                 }
                 proc.mCurSeq = mSequence;
                 proc.mInteresting = true;
-                proc.ensureLabel(pm);
+                proc.ensureLabel(context, pm);
             } else {
                 proc.mInteresting = false;
             }
@@ -1076,7 +1054,7 @@ public class RunningState {
             while (pit.hasNext()) {
                 ProcessItem pi = pit.next();
                 if (pi.mCurSeq == mSequence) {
-                    pi.ensureLabel(pm);
+                    pi.ensureLabel(context, pm);
                     if (pi.mPid == 0) {
                         // Sanity: a non-process can't be dependent on
                         // anything.
@@ -184,6 +184,11 @@ final class BluetoothEventManager {
                 }
             }
             mDeviceManager.onScanningStateChanged(mStarted);
+            if (mStarted) {
+                for (CachedBluetoothDevice cachedDevice : mDeviceManager.removeStaleDevices()) {
+                    dispatchDeviceDeleted(cachedDevice);
+                }
+            }
             LocalBluetoothPreferences.persistDiscoveringTimestamp(context);
         }
     }
@@ -204,10 +209,8 @@ final class BluetoothEventManager {
                 // callback to UI to create Preference for new device
                 dispatchDeviceAdded(cachedDevice);
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
+            mDeviceManager.onDeviceFound(cachedDevice);
+            cachedDevice.onDeviceFound(rssi, btClass, name);
         }
     }
 
@@ -219,6 +222,14 @@ final class BluetoothEventManager {
         }
     }
 
+    private void dispatchDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        synchronized (mCallbacks) {
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onDeviceDeleted(cachedDevice);
+            }
+        }
+    }
+
     private class DeviceDisappearedHandler implements Handler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
@@ -228,11 +239,7 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
-                synchronized (mCallbacks) {
-                    for (BluetoothCallback callback : mCallbacks) {
-                        callback.onDeviceDeleted(cachedDevice);
-                    }
-                }
+                dispatchDeviceDeleted(cachedDevice);
             }
         }
     }
@@ -21,12 +21,16 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.bluetooth.BluetoothAdapter;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -64,6 +68,10 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private boolean mVisible;
 
+    // Discovery scan that last found this device, as counted by
+    // CachedBluetoothDeviceManager
+    private int mLastSeenScan;
+
     private int mPhonebookPermissionChoice;
 
     private int mMessagePermissionChoice;
@@ -74,6 +82,36 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
 
+    // Attribute changes from discovery results are dispatched on the main
+    // thread, at most once per frame; the ones made while a dispatch is
+    // pending are folded into it.  All guarded by mCallbacks.
+    private boolean mDispatchPending;
+    private int mDispatchCount;
+    private int mSuppressedDispatchCount;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Choreographer.FrameCallback mDispatchFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (mCallbacks) {
+                mDispatchPending = false;
+                mDispatchCount++;
+                for (Callback callback : mCallbacks) {
+                    callback.onDeviceAttributesChanged();
+                }
+            }
+        }
+    };
+
+    private final Runnable mScheduleDispatch = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mDispatchFrameCallback);
+        }
+    };
+
     // Following constants indicate the user's choices of Phone book/message access settings
     // User hasn't made any choice or settings app has wiped out the memory
     final static int ACCESS_UNKNOWN = 0;
@@ -388,6 +426,12 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     }
 
     void setName(String name) {
+        if (applyName(name)) {
+            dispatchAttributesChanged();
+        }
+    }
+
+    private boolean applyName(String name) {
         if (!mName.equals(name)) {
             if (TextUtils.isEmpty(name)) {
                 // TODO: use friendly name for unknown device (bug 1181856)
@@ -396,7 +440,32 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
                 mName = name;
                 mDevice.setAlias(name);
             }
-            dispatchAttributesChanged();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies the attributes of a discovery result and marks the device
+     * visible, with a single attributes changed dispatch for all of them.
+     */
+    void onDeviceFound(short rssi, BluetoothClass btClass, String name) {
+        boolean changed = false;
+        if (mRssi != rssi) {
+            mRssi = rssi;
+            changed = true;
+        }
+        if (btClass != null && mBtClass != btClass) {
+            mBtClass = btClass;
+            changed = true;
+        }
+        changed |= applyName(name);
+        if (!mVisible) {
+            mVisible = true;
+            changed = true;
+        }
+        if (changed) {
+            scheduleAttributesChanged();
         }
     }
 
@@ -433,11 +502,12 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         return mDevice.getBondState();
     }
 
-    void setRssi(short rssi) {
-        if (mRssi != rssi) {
-            mRssi = rssi;
-            dispatchAttributesChanged();
-        }
+    int getLastSeenScan() {
+        return mLastSeenScan;
+    }
+
+    void setLastSeenScan(int scan) {
+        mLastSeenScan = scan;
     }
 
     /**
@@ -559,13 +629,6 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
-    void setBtClass(BluetoothClass btClass) {
-        if (btClass != null && mBtClass != btClass) {
-            mBtClass = btClass;
-            dispatchAttributesChanged();
-        }
-    }
-
     BluetoothClass getBtClass() {
         return mBtClass;
     }
@@ -603,12 +666,42 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private void dispatchAttributesChanged() {
         synchronized (mCallbacks) {
+            mDispatchCount++;
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
             }
         }
     }
 
+    /**
+     * Like {@link #dispatchAttributesChanged}, but delivered with the next
+     * frame, together with any other changes made until then.  For discovery
+     * results, which can arrive many times a second per device.
+     */
+    private void scheduleAttributesChanged() {
+        synchronized (mCallbacks) {
+            if (mDispatchPending) {
+                mSuppressedDispatchCount++;
+                return;
+            }
+            mDispatchPending = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mScheduleDispatch.run();
+        } else {
+            sMainHandler.post(mScheduleDispatch);
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        synchronized (mCallbacks) {
+            writer.println(prefix + mDevice + " \"" + mName + "\" rssi=" + mRssi
+                    + " visible=" + mVisible);
+            writer.println(prefix + "  attribute changes dispatched=" + mDispatchCount
+                    + " suppressed=" + mSuppressedDispatchCount);
+        }
+    }
+
     @Override
     public String toString() {
         return mDevice.toString();
@@ -21,20 +21,37 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ * <p>
+ * Devices are kept in the order they were added, and indexed by address.
+ * Both are changed together under the manager's lock; {@link #findDevice}
+ * reads the index without taking it.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
+    /**
+     * Unbonded devices missing from this many discovery scans in a row are
+     * dropped when the next one starts.
+     */
+    private static final int MAX_MISSED_SCANS = 3;
+
     private Context mContext;
     private final List<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mDevicesByAddress =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
+
+    /** Number of discovery scans started so far. */
+    private int mScanCount;
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
@@ -49,7 +66,7 @@ final class CachedBluetoothDeviceManager {
         return cachedDevice.getBondState() == BluetoothDevice.BOND_NONE;
     }
 
-    public void onDeviceNameUpdated(BluetoothDevice device) {
+    public synchronized void onDeviceNameUpdated(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshName();
@@ -67,29 +84,64 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+        return mDevicesByAddress.get(device.getAddress());
     }
 
     /**
      * Create and return a new {@link CachedBluetoothDevice}. This assumes
-     * that {@link #findDevice} has already been called and returned null.
+     * that {@link #findDevice} has already been called and returned null;
+     * if another thread added the device since, that one is returned.
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
-    CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
+    synchronized CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
+        CachedBluetoothDevice cachedDevice = mDevicesByAddress.get(device.getAddress());
+        if (cachedDevice != null) {
+            return cachedDevice;
+        }
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
+        newDevice.setLastSeenScan(mScanCount);
         mCachedDevices.add(newDevice);
+        mDevicesByAddress.put(device.getAddress(), newDevice);
         return newDevice;
     }
 
+    /**
+     * Records that the device was found by the current discovery scan.
+     */
+    synchronized void onDeviceFound(CachedBluetoothDevice cachedDevice) {
+        cachedDevice.setLastSeenScan(mScanCount);
+    }
+
+    /**
+     * Drops the unbonded devices that were not found by any of the last
+     * {@link #MAX_MISSED_SCANS} discovery scans, so the cache does not grow
+     * without bound in crowded places.  Call as a new scan starts.
+     *
+     * @return the devices dropped
+     */
+    synchronized List<CachedBluetoothDevice> removeStaleDevices() {
+        List<CachedBluetoothDevice> removed = new ArrayList<CachedBluetoothDevice>();
+        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
+            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+            if (cachedDevice.getBondState() == BluetoothDevice.BOND_NONE
+                    && mScanCount - cachedDevice.getLastSeenScan() > MAX_MISSED_SCANS) {
+                cachedDevice.setVisible(false);
+                mCachedDevices.remove(i);
+                mDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
+                removed.add(cachedDevice);
+            }
+        }
+        if (DEBUG && !removed.isEmpty()) {
+            log("Removed " + removed.size() + " devices not seen for " + MAX_MISSED_SCANS
+                    + " scans");
+        }
+        return removed;
+    }
+
     /**
      * Attempts to get the name of a remote device, otherwise returns the address.
      *
@@ -112,6 +164,7 @@ final class CachedBluetoothDeviceManager {
 
     public synchronized void onScanningStateChanged(boolean started) {
         if (!started) return;
+        mScanCount++;
 
         // If starting a new scan, clear old visibility
         // Iterate in reverse order since devices may be removed.
@@ -144,6 +197,7 @@ final class CachedBluetoothDeviceManager {
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                    cachedDevice.setVisible(false);
                    mCachedDevices.remove(i);
+                   mDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -153,6 +207,15 @@ final class CachedBluetoothDeviceManager {
             }
         }
     }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Cached devices: " + mCachedDevices.size() + ", scans: "
+                + mScanCount);
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
+            cachedDevice.dump(prefix + "  ", writer);
+        }
+    }
+
     private void log(String msg) {
         if (DEBUG) {
             Log.d(TAG, msg);
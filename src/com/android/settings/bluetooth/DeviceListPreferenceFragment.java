@@ -29,6 +29,8 @@ import com.android.settings.ProgressCategory;
 import com.android.settings.RestrictedSettingsFragment;
 import com.android.settings.SettingsPreferenceFragment;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.WeakHashMap;
 
@@ -205,4 +207,12 @@ public abstract class DeviceListPreferenceFragment extends
             updateProgressUi(false);
         }
     }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mLocalManager != null) {
+            mLocalManager.getCachedDeviceManager().dump(prefix, writer);
+        }
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.os.storage.StorageVolume;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+import com.android.settings.deviceinfo.StorageMeasurement.MeasurementDetails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last completed {@link MeasurementDetails} of one volume, kept in the
+ * cache dir so the Storage screen can show a breakdown right away after the
+ * process was killed, while a new measurement runs.
+ */
+class MeasurementSnapshot {
+    private static final String TAG = "MeasurementSnapshot";
+
+    private static final int MAGIC = 0x53544f52;
+    private static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+
+    /** Misc files of the last snapshot read. */
+    List<FileInfo> miscFiles;
+
+    MeasurementSnapshot(Context context, StorageVolume volume) {
+        final String name = volume != null ? volume.getPath().replace('/', '_') : "_internal";
+        mFile = new AtomicFile(new File(context.getCacheDir(), "storage" + name + ".snapshot"));
+    }
+
+    /**
+     * Reads the snapshot, if there is one for the given user.  The details
+     * returned have {@link MeasurementDetails#snapshotTime} set, and the misc
+     * files are left in {@link #miscFiles}.
+     */
+    MeasurementDetails read(int userId) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != userId) {
+                return null;
+            }
+            final MeasurementDetails details = new MeasurementDetails();
+            details.snapshotTime = in.readLong();
+            details.totalSize = in.readLong();
+            details.availSize = in.readLong();
+            details.appsSize = in.readLong();
+            details.cacheSize = in.readLong();
+            details.miscSize = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                details.mediaSize.put(in.readUTF(), in.readLong());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                details.usersSize.put(in.readInt(), in.readLong());
+            }
+            count = in.readInt();
+            final ArrayList<FileInfo> files = new ArrayList<FileInfo>(count);
+            for (int i = 0; i < count; i++) {
+                files.add(new FileInfo(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            miscFiles = files;
+            return details;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            // Truncated or otherwise corrupt file; it will be rewritten.
+            Log.w(TAG, "Discarding corrupt " + mFile.getBaseFile(), e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given completed measurement.
+     */
+    void write(int userId, MeasurementDetails details, List<FileInfo> files) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(userId);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(details.totalSize);
+            out.writeLong(details.availSize);
+            out.writeLong(details.appsSize);
+            out.writeLong(details.cacheSize);
+            out.writeLong(details.miscSize);
+            out.writeInt(details.mediaSize.size());
+            for (Map.Entry<String, Long> entry : details.mediaSize.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(details.usersSize.size());
+            for (int i = 0; i < details.usersSize.size(); i++) {
+                out.writeInt(details.usersSize.keyAt(i));
+                out.writeLong(details.usersSize.valueAt(i));
+            }
+            final int count = files != null ? files.size() : 0;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                final FileInfo info = files.get(i);
+                out.writeUTF(info.mFileName);
+                out.writeLong(info.mSize);
+                out.writeLong(info.mId);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
@@ -50,6 +51,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,6 +88,30 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Directory scans run at once, shared by all volumes. */
+    private static final int MAX_SCAN_THREADS = 3;
+    /** Package size requests kept in flight at once. */
+    private static final int PACKAGE_SIZE_WINDOW = 8;
+    /** Minimum time between partial {@link MeasurementDetails} updates. */
+    private static final long PARTIAL_UPDATE_INTERVAL = 200;
+
+    private static final ExecutorService sScanExecutor;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_SCAN_THREADS, MAX_SCAN_THREADS, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "StorageMeasurement #" + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sScanExecutor = executor;
+    }
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -141,6 +176,32 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * Whether measurement is still running, in which case sizes not yet
+         * measured are zero.
+         */
+        public boolean partial;
+
+        /**
+         * When these details are the snapshot of an earlier measurement, shown
+         * until a new one completes, the wall clock time it was taken;
+         * otherwise 0.
+         */
+        public long snapshotTime;
+
+        MeasurementDetails copyPartial() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize = new HashMap<String, Long>(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            copy.partial = true;
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -161,12 +222,18 @@ public class StorageMeasurement {
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    volatile List<FileInfo> mFileInfoForMisc;
+
+    private final MeasurementSnapshot mSnapshot;
+    private boolean mSnapshotRead;
+    /** Set while the snapshot is shown, which partial updates would replace. */
+    private volatile boolean mShowingSnapshot;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mSnapshot = new MeasurementSnapshot(context, volume);
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -215,21 +282,61 @@ public class StorageMeasurement {
         receiver.updateDetails(this, details);
     }
 
-    private static class StatsObserver extends IPackageStatsObserver.Stub {
+    /**
+     * Collects package sizes into the details, keeping at most
+     * {@link #PACKAGE_SIZE_WINDOW} requests in flight, and sends the finished
+     * message once every package and the directory scans are done.
+     */
+    private class StatsObserver extends IPackageStatsObserver.Stub {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
         private final Message mFinished;
-
+        private final PackageManager mPm;
+        private final List<UserInfo> mUsers;
+        private final List<ApplicationInfo> mApps;
+        private final int mCount;
+
+        // All guarded by mDetails.
+        private int mNext;
+        /** Packages not yet measured, plus one for the directory scans. */
         private int mRemaining;
+        private long mLastPartialUpdate;
 
         public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+                Message finished, PackageManager pm, List<UserInfo> users,
+                List<ApplicationInfo> apps) {
             mIsInternal = isInternal;
             mDetails = details;
             mCurrentUser = currentUser;
             mFinished = finished;
-            mRemaining = remaining;
+            mPm = pm;
+            mUsers = users;
+            mApps = apps;
+            mCount = users.size() * apps.size();
+            mRemaining = mCount + 1;
+        }
+
+        public void start() {
+            for (int i = 0; i < PACKAGE_SIZE_WINDOW; i++) {
+                if (!requestNext()) {
+                    break;
+                }
+            }
+        }
+
+        private boolean requestNext() {
+            final int index;
+            synchronized (mDetails) {
+                if (mNext >= mCount) {
+                    return false;
+                }
+                index = mNext++;
+            }
+            final ApplicationInfo app = mApps.get(index % mApps.size());
+            final UserInfo user = mUsers.get(index / mApps.size());
+            mPm.getPackageSizeInfo(app.packageName, user.id, this);
+            return true;
         }
 
         @Override
@@ -238,12 +345,40 @@ public class StorageMeasurement {
                 if (succeeded) {
                     addStatsLocked(stats);
                 }
+            }
+            requestNext();
+            partFinished();
+            sendPartialUpdate();
+        }
+
+        /**
+         * Marks one package, or the directory scans, as done.
+         */
+        public void partFinished() {
+            synchronized (mDetails) {
                 if (--mRemaining == 0) {
                     mFinished.sendToTarget();
                 }
             }
         }
 
+        /**
+         * Sends a copy of the details measured so far, unless one was sent
+         * recently or measurement is done.
+         */
+        public void sendPartialUpdate() {
+            synchronized (mDetails) {
+                final long now = SystemClock.elapsedRealtime();
+                if (mRemaining == 0 || mShowingSnapshot
+                        || now - mLastPartialUpdate < PARTIAL_UPDATE_INTERVAL) {
+                    return;
+                }
+                mLastPartialUpdate = now;
+                // Sent under the lock so it cannot overtake the final details.
+                sendExactUpdate(mDetails.copyPartial());
+            }
+        }
+
         private void addStatsLocked(PackageStats stats) {
             if (mIsInternal) {
                 long codeSize = stats.codeSize;
@@ -332,6 +467,21 @@ public class StorageMeasurement {
                         return;
                     }
 
+                    if (!mSnapshotRead) {
+                        // Show the last measurement from an earlier process
+                        // while this one runs.
+                        mSnapshotRead = true;
+                        final MeasurementDetails snapshot = mSnapshot.read(
+                                ActivityManager.getCurrentUser());
+                        if (snapshot != null) {
+                            if (mFileInfoForMisc == null) {
+                                mFileInfoForMisc = mSnapshot.miscFiles;
+                            }
+                            mShowingSnapshot = true;
+                            sendExactUpdate(snapshot);
+                        }
+                    }
+
                     synchronized (mLock) {
                         if (mBound) {
                             removeMessages(MSG_DISCONNECT);
@@ -366,7 +516,9 @@ public class StorageMeasurement {
                 }
                 case MSG_COMPLETED: {
                     mCached = (MeasurementDetails) msg.obj;
+                    mShowingSnapshot = false;
                     sendExactUpdate(mCached);
+                    mSnapshot.write(ActivityManager.getCurrentUser(), mCached, mFileInfoForMisc);
                     break;
                 }
                 case MSG_INVALIDATE: {
@@ -390,7 +542,7 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        private void measureExactStorage(final IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
@@ -409,53 +561,88 @@ public class StorageMeasurement {
             final int currentUser = ActivityManager.getCurrentUser();
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
 
+            // Measure all apps for all users, a window of packages at a time,
+            // while the directories are scanned
+            final PackageManager pm = context.getPackageManager();
+            final List<ApplicationInfo> apps;
+            if (mIsInternal || mIsPrimary) {
+                apps = pm.getInstalledApplications(
+                        PackageManager.GET_UNINSTALLED_PACKAGES
+                        | PackageManager.GET_DISABLED_COMPONENTS);
+            } else {
+                apps = Collections.emptyList();
+            }
+            final StatsObserver observer = new StatsObserver(
+                    mIsInternal, details, currentUser, finished, pm, users, apps);
+            observer.start();
+
+            final ExecutorCompletionService<Void> scans =
+                    new ExecutorCompletionService<Void>(sScanExecutor);
+            int scanCount = 0;
+
             // Measure media types for emulated storage, or for primary physical
             // external volume
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    scans.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            final long size = getDirectorySize(imcs, path);
+                            synchronized (details) {
+                                details.mediaSize.put(type, size);
+                            }
+                            return null;
+                        }
+                    });
+                    scanCount++;
                 }
             }
 
             // Measure misc files not counted under media
+            final ArrayList<FileInfo> miscFiles = new ArrayList<FileInfo>();
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                scanCount += measureMisc(imcs, path, details, miscFiles, scans);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
             for (UserInfo user : users) {
-                final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                final int userId = user.id;
+                final File path = new UserEnvironment(userId).getExternalStorageDirectory();
+                scans.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        final long size = getDirectorySize(imcs, path);
+                        synchronized (details) {
+                            addValue(details.usersSize, userId, size);
+                        }
+                        return null;
+                    }
+                });
+                scanCount++;
             }
 
-            // Measure all apps for all users
-            final PackageManager pm = context.getPackageManager();
-            if (mIsInternal || mIsPrimary) {
-                final List<ApplicationInfo> apps = pm.getInstalledApplications(
-                        PackageManager.GET_UNINSTALLED_PACKAGES
-                        | PackageManager.GET_DISABLED_COMPONENTS);
-
-                final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
-
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
-                    }
+            for (int i = 0; i < scanCount; i++) {
+                try {
+                    scans.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Problem measuring directory", e);
                 }
-
-            } else {
-                finished.sendToTarget();
+                observer.sendPartialUpdate();
             }
+
+            // sort the list of FileInfo objects collected above in descending order of their sizes
+            Collections.sort(miscFiles);
+            mFileInfoForMisc = miscFiles;
+
+            observer.partFinished();
         }
     }
 
@@ -470,17 +657,24 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-
+    /**
+     * Lists the top level of the given directory, except media types, and
+     * queues a scan of each subdirectory.  Sizes are added to the details as
+     * they complete.
+     *
+     * @return the number of scans queued
+     */
+    private int measureMisc(final IMediaContainerService imcs, File dir,
+            final MeasurementDetails details, final List<FileInfo> miscFiles,
+            CompletionService<Void> scans) {
         final File[] files = dir.listFiles();
         if (files == null) return 0;
 
         // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
-        long miscSize = 0;
+        int scanCount = 0;
 
-        for (File file : files) {
+        for (final File file : files) {
             final String path = file.getAbsolutePath();
             final String name = file.getName();
             if (sMeasureMediaTypes.contains(name)) {
@@ -489,21 +683,30 @@ public class StorageMeasurement {
 
             if (file.isFile()) {
                 final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
+                synchronized (details) {
+                    miscFiles.add(new FileInfo(path, fileSize, counter++));
+                    details.miscSize += fileSize;
+                }
             } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                final long id = counter++;
+                scans.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        final long dirSize = getDirectorySize(imcs, file);
+                        synchronized (details) {
+                            miscFiles.add(new FileInfo(path, dirSize, id));
+                            details.miscSize += dirSize;
+                        }
+                        return null;
+                    }
+                });
+                scanCount++;
             } else {
                 // Non directory, non file: not listed
             }
         }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-
-        return miscSize;
+        return scanCount;
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -35,6 +35,7 @@ import android.os.storage.StorageVolume;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
 import android.provider.MediaStore;
+import android.text.format.DateUtils;
 import android.text.format.Formatter;
 
 import com.android.settings.R;
@@ -80,6 +81,10 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
 
     private long mTotalSize;
 
+    /** Snapshot of an earlier measurement being shown, if any. */
+    private MeasurementDetails mSnapshotDetails;
+    private CharSequence mSnapshotAge;
+
     private static final int MSG_UI_UPDATE_APPROXIMATE = 1;
     private static final int MSG_UI_UPDATE_DETAILS = 2;
 
@@ -301,6 +306,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         mUsageBarPreference.commit();
 
         updatePreferencesFromState();
+
+        if (mSnapshotDetails != null) {
+            // Keep showing the snapshot breakdown against the fresh totals
+            mSnapshotDetails.totalSize = totalSize;
+            mSnapshotDetails.availSize = availSize;
+            updateDetails(mSnapshotDetails);
+        }
     }
 
     private static long totalValues(HashMap<String, Long> map, String... keys) {
@@ -320,40 +332,56 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         // Count caches as available space, since system manages them
         mItemTotal.setSummary(formatSize(details.totalSize));
         mItemAvailable.setSummary(formatSize(details.availSize));
+        mTotalSize = details.totalSize;
+
+        // A snapshot of an earlier measurement is shown with its age until
+        // the running measurement completes
+        mSnapshotDetails = details.snapshotTime != 0 ? details : null;
+        mSnapshotAge = mSnapshotDetails != null ? DateUtils.getRelativeTimeSpanString(
+                details.snapshotTime, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS)
+                : null;
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        // Sizes still being measured are zero until then; keep their items
+        final boolean removeEmpty = !details.partial && mSnapshotDetails == null;
+
+        updatePreference(mItemApps, details.appsSize, removeEmpty);
 
         final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
                 Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        updatePreference(mItemDcim, dcimSize, removeEmpty);
 
         final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
                 Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
                 Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+        updatePreference(mItemMusic, musicSize, removeEmpty);
 
         final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+        updatePreference(mItemDownloads, downloadsSize, removeEmpty);
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        updatePreference(mItemCache, details.cacheSize, removeEmpty);
+        updatePreference(mItemMisc, details.miscSize, removeEmpty);
 
         for (StorageItemPreference userPref : mItemUsers) {
             final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+            updatePreference(userPref, userSize, removeEmpty);
         }
 
         mUsageBarPreference.commit();
     }
 
-    private void updatePreference(StorageItemPreference pref, long size) {
+    private void updatePreference(StorageItemPreference pref, long size, boolean removeEmpty) {
         if (size > 0) {
-            pref.setSummary(formatSize(size));
+            if (mSnapshotAge != null) {
+                pref.setSummary(mResources.getString(R.string.memory_size_from_snapshot,
+                        formatSize(size), mSnapshotAge));
+            } else {
+                pref.setSummary(formatSize(size));
+            }
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
-        } else {
+        } else if (removeEmpty) {
             removePreference(pref);
         }
     }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.drawable;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide cache of application icons, downsampled to the size they are
+ * shown at in lists and bounded by a byte budget.  Shared by the application,
+ * running process, data usage and battery screens so that the same icon is
+ * only decoded once.  Trims itself when the system is low on memory.
+ */
+public class AppIconCache implements ComponentCallbacks2 {
+
+    /**
+     * Notified when the cache was trimmed, so holders of icons obtained from
+     * it can drop their references too.
+     */
+    public interface TrimListener {
+        public void onIconsTrimmed();
+    }
+
+    private static AppIconCache sInstance;
+
+    private final Resources mRes;
+    private final int mIconSize;
+    private final LruCache<String, Bitmap> mCache;
+    private final ArrayList<TrimListener> mListeners = new ArrayList<TrimListener>();
+
+    public static synchronized AppIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppIconCache(Context context) {
+        mRes = context.getResources();
+        mIconSize = mRes.getDimensionPixelSize(android.R.dimen.app_icon_size);
+
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int budget = am.getMemoryClass() * 1024 * 1024
+                / (am.isLowRamDevice() ? 32 : 16);
+        mCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        context.registerComponentCallbacks(this);
+    }
+
+    public void addTrimListener(TrimListener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeTrimListener(TrimListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the icon of the given package item, loading and downsampling
+     * it if it is not cached.  Each call returns a new {@link Drawable}
+     * sharing the cached bitmap.
+     */
+    public Drawable getIcon(PackageItemInfo item, PackageManager pm) {
+        final String key = keyFor(item);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            final Drawable icon = item.loadIcon(pm);
+            bitmap = renderIcon(icon);
+            if (bitmap == null) {
+                // Can't be flattened; hand it out as is, uncached.
+                return icon;
+            }
+            mCache.put(key, bitmap);
+        }
+        return new BitmapDrawable(mRes, bitmap);
+    }
+
+    /**
+     * Returns the icon of the given package item if it is cached, or null
+     * without loading it.
+     */
+    public Drawable peekIcon(PackageItemInfo item) {
+        final Bitmap bitmap = mCache.get(keyFor(item));
+        return bitmap != null ? new BitmapDrawable(mRes, bitmap) : null;
+    }
+
+    /**
+     * Drops all icons of the given package, typically because it was
+     * updated or removed.
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + ":";
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Renders an icon at list size, never scaling up.  Does not touch the
+     * bounds of the given drawable since it may be on screen.
+     */
+    public Bitmap renderIcon(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap == null) {
+                return null;
+            }
+            if (bitmap.getWidth() <= mIconSize && bitmap.getHeight() <= mIconSize) {
+                return bitmap;
+            }
+            return Bitmap.createScaledBitmap(bitmap, mIconSize, mIconSize, true);
+        }
+        final Drawable.ConstantState state = drawable.getConstantState();
+        if (state == null) {
+            return null;
+        }
+        final Drawable copy = state.newDrawable(mRes);
+        final Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize,
+                Bitmap.Config.ARGB_8888);
+        copy.setBounds(0, 0, mIconSize, mIconSize);
+        copy.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    private static String keyFor(PackageItemInfo item) {
+        int iconRes = item.icon;
+        if (iconRes == 0 && item instanceof ComponentInfo) {
+            iconRes = ((ComponentInfo) item).getIconResource();
+        }
+        return item.packageName + ":" + iconRes;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            // Merely leaving the UI is no memory pressure; the icons are
+            // wanted again when the user comes back.
+            mCache.trimToSize(mCache.maxSize() / 2);
+        } else {
+            return;
+        }
+        final ArrayList<TrimListener> listeners;
+        synchronized (mListeners) {
+            listeners = new ArrayList<TrimListener>(mListeners);
+        }
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).onIconsTrimmed();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -25,12 +25,14 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.SystemClock;
 import android.os.BatteryStats.HistoryItem;
 import android.telephony.ServiceState;
 import android.text.TextPaint;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.View;
 
@@ -121,15 +123,35 @@ public class BatteryHistoryChart extends View {
     final ChartData mPhoneSignalChart = new ChartData();
     final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     
-    final Path mBatLevelPath = new Path();
-    final Path mBatGoodPath = new Path();
-    final Path mBatWarnPath = new Path();
-    final Path mBatCriticalPath = new Path();
-    final Path mChargingPath = new Path();
-    final Path mScreenOnPath = new Path();
-    final Path mGpsOnPath = new Path();
-    final Path mWifiRunningPath = new Path();
-    final Path mWakeLockPath = new Path();
+    /** Everything built from the data for one size of the chart. */
+    static class Geometry {
+        final Path mBatLevelPath = new Path();
+        final Path mBatGoodPath = new Path();
+        final Path mBatWarnPath = new Path();
+        final Path mBatCriticalPath = new Path();
+        final Path mChargingPath = new Path();
+        final Path mScreenOnPath = new Path();
+        final Path mGpsOnPath = new Path();
+        final Path mWifiRunningPath = new Path();
+        final Path mWakeLockPath = new Path();
+        int[] mPhoneSignalTicks;
+        int mPhoneSignalNumTicks;
+        int mLevelBottom;
+    }
+
+    // Paths of the current size, from mGeometryCache.
+    Path mBatLevelPath;
+    Path mBatGoodPath;
+    Path mBatWarnPath;
+    Path mBatCriticalPath;
+    Path mChargingPath;
+    Path mScreenOnPath;
+    Path mGpsOnPath;
+    Path mWifiRunningPath;
+    Path mWakeLockPath;
+
+    /** Geometry of the current data by size, so that going back to a size is free. */
+    final LruCache<Long, Geometry> mGeometryCache = new LruCache<Long, Geometry>(3);
     
     int mFontSize;
     
@@ -166,7 +188,8 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
     
-    int mNumHist;
+    BatteryHistoryData mData;
+    AsyncTask<Void, Void, BatteryHistoryData> mDecodeTask;
     long mHistStart;
     long mHistEnd;
     int mBatLow;
@@ -178,6 +201,8 @@ public class BatteryHistoryChart extends View {
     public BatteryHistoryChart(Context context, AttributeSet attrs) {
         super(context, attrs);
         
+        useGeometry(new Geometry());
+
         mBatteryBackgroundPaint.setARGB(255, 128, 128, 128);
         mBatteryBackgroundPaint.setStyle(Paint.Style.FILL);
         mBatteryGoodPaint.setARGB(128, 0, 255, 0);
@@ -349,40 +374,66 @@ public class BatteryHistoryChart extends View {
         mWifiRunningLabel = getContext().getString(R.string.battery_stats_wifi_running_label);
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
-        
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
-        mBatLow = 0;
-        mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
+        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
+            mHavePhoneSignal = true;
+        }
+
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
+        final BatteryHistoryData cached = BatteryHistoryData.getCached(stats);
+        if (cached != null) {
+            setData(cached);
+            return;
+        }
+
+        // Decode the history off the UI thread; draw without it until then.
+        setData(null);
+        final BatteryStats decodeStats = stats;
+        mDecodeTask = new AsyncTask<Void, Void, BatteryHistoryData>() {
+            @Override
+            protected BatteryHistoryData doInBackground(Void... params) {
+                return BatteryHistoryData.decode(decodeStats);
+            }
+
+            @Override
+            protected void onPostExecute(BatteryHistoryData result) {
+                if (mStats == decodeStats) {
+                    mDecodeTask = null;
+                    setData(result);
                 }
             }
+        }.execute();
+    }
+
+    void setData(BatteryHistoryData data) {
+        if (data != null && data == mData) {
+            return;
         }
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
-            mHavePhoneSignal = true;
+        mData = data;
+        mBatLow = 0;
+        mBatHigh = 100;
+        if (data != null) {
+            mHistStart = data.histStart;
+            mHistEnd = data.histEnd;
+            mHaveGps = (data.aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+            mHaveWifi = (data.aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+        } else {
+            mHistStart = mHistEnd = 0;
+            mHaveGps = mHaveWifi = false;
         }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
-        mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart, true);
+        mTotalDurationString = data != null
+                ? Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart, true) : "";
+
+        // Paths and layout depend on the data; rebuild if already laid out.
+        mGeometryCache.evictAll();
+        if (getWidth() > 0 && getHeight() > 0) {
+            onSizeChanged(getWidth(), getHeight(), getWidth(), getHeight());
+        }
+        requestLayout();
+        invalidate();
     }
 
     @Override
@@ -480,20 +531,49 @@ public class BatteryHistoryChart extends View {
             mPhoneSignalOffset = mGpsOnOffset + (mHaveGps ? barOffset : 0);
             mLevelOffset = mPhoneSignalOffset + (mHavePhoneSignal ? barOffset : 0)
                     + ((mLineWidth*3)/2);
-            if (mHavePhoneSignal) {
-                mPhoneSignalChart.init(w);
-            }
         } else {
             mScreenOnOffset = mGpsOnOffset = mWifiRunningOffset
                     = mWakeLockOffset = mLineWidth;
             mChargingOffset = mLineWidth*2;
             mPhoneSignalOffset = 0;
             mLevelOffset = mLineWidth*3;
-            if (mHavePhoneSignal) {
-                mPhoneSignalChart.init(0);
-            }
         }
 
+        final long key = ((long) w << 32) | h;
+        Geometry geometry = mGeometryCache.get(key);
+        if (geometry != null) {
+            // Same data at a size we had before; reuse its paths.
+            useGeometry(geometry);
+            return;
+        }
+        geometry = new Geometry();
+        useGeometry(geometry);
+        buildPaths(w, h);
+        geometry.mPhoneSignalTicks = mPhoneSignalChart.mTicks;
+        geometry.mPhoneSignalNumTicks = mPhoneSignalChart.mNumTicks;
+        geometry.mLevelBottom = mLevelBottom;
+        mGeometryCache.put(key, geometry);
+    }
+
+    private void useGeometry(Geometry geometry) {
+        mBatLevelPath = geometry.mBatLevelPath;
+        mBatGoodPath = geometry.mBatGoodPath;
+        mBatWarnPath = geometry.mBatWarnPath;
+        mBatCriticalPath = geometry.mBatCriticalPath;
+        mChargingPath = geometry.mChargingPath;
+        mScreenOnPath = geometry.mScreenOnPath;
+        mGpsOnPath = geometry.mGpsOnPath;
+        mWifiRunningPath = geometry.mWifiRunningPath;
+        mWakeLockPath = geometry.mWakeLockPath;
+        mPhoneSignalChart.mTicks = geometry.mPhoneSignalTicks;
+        mPhoneSignalChart.mNumTicks = geometry.mPhoneSignalNumTicks;
+        mLevelBottom = geometry.mLevelBottom;
+    }
+
+    /**
+     * Generate all paths for the given size from the decoded history.
+     */
+    private void buildPaths(int w, int h) {
         mBatLevelPath.reset();
         mBatGoodPath.reset();
         mBatWarnPath.reset();
@@ -503,6 +583,9 @@ public class BatteryHistoryChart extends View {
         mWifiRunningPath.reset();
         mWakeLockPath.reset();
         mChargingPath.reset();
+        if (mHavePhoneSignal) {
+            mPhoneSignalChart.init(mLargeMode ? w : 0);
+        }
         
         final long timeStart = mHistStart;
         final long timeChange = mHistEnd-mHistStart;
@@ -519,130 +602,128 @@ public class BatteryHistoryChart extends View {
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
+        final BatteryHistoryData data = mData;
+        final int N = data != null ? data.size : 0;
+        for (i = 0; i < N; i++) {
+            final int states = data.states[i];
+            if (data.kinds[i] == BatteryHistoryData.KIND_UPDATE) {
+                final byte batteryLevel = data.levels[i];
+                x = (int)(((data.times[i]-timeStart)*w)/timeChange);
+                y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
+
+                if (lastX != x) {
+                    // We have moved by at least a pixel.
+                    if (lastY != y) {
+                        // Don't plot changes within a pixel.
+                        Path path;
+                        byte value = batteryLevel;
+                        if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
+                        else if (value <= BATTERY_WARN) path = mBatWarnPath;
+                        else path = mBatGoodPath;
+
+                        if (path != lastLinePath) {
+                            if (lastLinePath != null) {
+                                lastLinePath.lineTo(x, y);
                             }
-                            lastX = x;
-                            lastY = y;
+                            path.moveTo(x, y);
+                            lastLinePath = path;
+                        } else {
+                            path.lineTo(x, y);
                         }
-                    }
 
-                    final boolean charging =
-                        (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                    if (charging != lastCharging) {
-                        if (charging) {
-                            mChargingPath.moveTo(x, h-mChargingOffset);
+                        if (curLevelPath == null) {
+                            curLevelPath = mBatLevelPath;
+                            curLevelPath.moveTo(x, y);
+                            startX = x;
                         } else {
-                            mChargingPath.lineTo(x, h-mChargingOffset);
+                            curLevelPath.lineTo(x, y);
                         }
-                        lastCharging = charging;
+                        lastX = x;
+                        lastY = y;
                     }
+                }
 
-                    final boolean screenOn =
-                        (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                    if (screenOn != lastScreenOn) {
-                        if (screenOn) {
-                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                        } else {
-                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                        }
-                        lastScreenOn = screenOn;
+                final boolean charging =
+                    (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                if (charging != lastCharging) {
+                    if (charging) {
+                        mChargingPath.moveTo(x, h-mChargingOffset);
+                    } else {
+                        mChargingPath.lineTo(x, h-mChargingOffset);
                     }
+                    lastCharging = charging;
+                }
 
-                    final boolean gpsOn =
-                        (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                    if (gpsOn != lastGpsOn) {
-                        if (gpsOn) {
-                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                        } else {
-                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                        }
-                        lastGpsOn = gpsOn;
+                final boolean screenOn =
+                    (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                if (screenOn != lastScreenOn) {
+                    if (screenOn) {
+                        mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                    } else {
+                        mScreenOnPath.lineTo(x, h-mScreenOnOffset);
                     }
+                    lastScreenOn = screenOn;
+                }
 
-                    final boolean wifiRunning =
-                        (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                    if (wifiRunning != lastWifiRunning) {
-                        if (wifiRunning) {
-                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                        } else {
-                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                        }
-                        lastWifiRunning = wifiRunning;
+                final boolean gpsOn =
+                    (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                if (gpsOn != lastGpsOn) {
+                    if (gpsOn) {
+                        mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                    } else {
+                        mGpsOnPath.lineTo(x, h-mGpsOnOffset);
                     }
+                    lastGpsOn = gpsOn;
+                }
 
-                    final boolean wakeLock =
-                        (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                    if (wakeLock != lastWakeLock) {
-                        if (wakeLock) {
-                            mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                        } else {
-                            mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                        }
-                        lastWakeLock = wakeLock;
+                final boolean wifiRunning =
+                    (states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+                if (wifiRunning != lastWifiRunning) {
+                    if (wifiRunning) {
+                        mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                    } else {
+                        mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
                     }
+                    lastWifiRunning = wifiRunning;
+                }
 
-                    if (mLargeMode && mHavePhoneSignal) {
-                        int bin;
-                        if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                == ServiceState.STATE_POWER_OFF) {
-                            bin = 0;
-                        } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                            bin = 1;
-                        } else {
-                            bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                    >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                            bin += 2;
-                        }
-                        mPhoneSignalChart.addTick(x, bin);
+                final boolean wakeLock =
+                    (states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
+                if (wakeLock != lastWakeLock) {
+                    if (wakeLock) {
+                        mWakeLockPath.moveTo(x, h-mWakeLockOffset);
+                    } else {
+                        mWakeLockPath.lineTo(x, h-mWakeLockOffset);
                     }
+                    lastWakeLock = wakeLock;
+                }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
+                if (mLargeMode && mHavePhoneSignal) {
+                    int bin;
+                    if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                            == ServiceState.STATE_POWER_OFF) {
+                        bin = 0;
+                    } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                        bin = 1;
+                    } else {
+                        bin = (states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                                >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
+                        bin += 2;
                     }
+                    mPhoneSignalChart.addTick(x, bin);
+                }
+
+            } else {
+                if (curLevelPath != null) {
+                    finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                            lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                            lastWakeLock, lastLinePath);
+                    lastX = lastY = -1;
+                    curLevelPath = null;
+                    lastLinePath = null;
+                    lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
                 }
-                
-                i++;
             }
         }
         
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * The parts of a {@link BatteryStats} history that {@link BatteryHistoryChart}
+ * draws, decoded in a single pass into primitive arrays.  Records after the
+ * last update are dropped, and overflow records are skipped.
+ */
+final class BatteryHistoryData {
+    /** A state update. */
+    static final byte KIND_UPDATE = 0;
+    /** Any other command; breaks the level line. */
+    static final byte KIND_BREAK = 1;
+
+    final int size;
+    final byte[] kinds;
+    final long[] times;
+    final byte[] levels;
+    final int[] states;
+
+    final long histStart;
+    final long histEnd;
+    /** All state bits seen in any update. */
+    final int aggrStates;
+
+    // The last decoded history, since the chart is rebound often with the
+    // same stats.  Only weakly held, so it lives as long as a chart shows it.
+    private static WeakReference<BatteryStats> sCachedStats;
+    private static WeakReference<BatteryHistoryData> sCachedData;
+
+    private BatteryHistoryData(int size, byte[] kinds, long[] times, byte[] levels,
+            int[] states, long histStart, long histEnd, int aggrStates) {
+        this.size = size;
+        this.kinds = kinds;
+        this.times = times;
+        this.levels = levels;
+        this.states = states;
+        this.histStart = histStart;
+        this.histEnd = histEnd;
+        this.aggrStates = aggrStates;
+    }
+
+    /**
+     * Returns the decoded history of the given stats if it was decoded
+     * before, or null.
+     */
+    static synchronized BatteryHistoryData getCached(BatteryStats stats) {
+        if (sCachedStats != null && sCachedStats.get() == stats) {
+            return sCachedData.get();
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the history of the given stats.  May be called on any thread.
+     */
+    static BatteryHistoryData decode(BatteryStats stats) {
+        final BatteryHistoryData cached = getCached(stats);
+        if (cached != null) {
+            return cached;
+        }
+
+        int count = 0;
+        int lastUpdate = -1;
+        byte[] kinds = new byte[256];
+        long[] times = new long[256];
+        byte[] levels = new byte[256];
+        int[] states = new int[256];
+        long histStart = 0;
+        long histEnd = 0;
+        int aggrStates = 0;
+
+        synchronized (stats) {
+            if (stats.startIteratingHistoryLocked()) {
+                final HistoryItem rec = new HistoryItem();
+                while (stats.getNextHistoryLocked(rec)) {
+                    if (rec.cmd == HistoryItem.CMD_OVERFLOW) {
+                        continue;
+                    }
+                    if (count == kinds.length) {
+                        final int newLength = count * 2;
+                        kinds = Arrays.copyOf(kinds, newLength);
+                        times = Arrays.copyOf(times, newLength);
+                        levels = Arrays.copyOf(levels, newLength);
+                        states = Arrays.copyOf(states, newLength);
+                    }
+                    if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                        if (lastUpdate < 0) {
+                            histStart = rec.time;
+                        }
+                        kinds[count] = KIND_UPDATE;
+                        times[count] = rec.time;
+                        levels[count] = rec.batteryLevel;
+                        states[count] = rec.states;
+                        lastUpdate = count;
+                        histEnd = rec.time;
+                        aggrStates |= rec.states;
+                    } else {
+                        kinds[count] = KIND_BREAK;
+                    }
+                    count++;
+                }
+            }
+        }
+
+        final BatteryHistoryData data = new BatteryHistoryData(lastUpdate + 1, kinds, times,
+                levels, states, histStart, histEnd, aggrStates);
+        synchronized (BatteryHistoryData.class) {
+            sCachedStats = new WeakReference<BatteryStats>(stats);
+            sCachedData = new WeakReference<BatteryHistoryData>(data);
+        }
+        return data;
+    }
+}
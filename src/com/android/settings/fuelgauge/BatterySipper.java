@@ -17,29 +17,20 @@ package com.android.settings.fuelgauge;
 
 import com.android.settings.R;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
+import com.android.settings.net.UidResolver;
+import com.android.settings.net.UidResolver.UidInfo;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.BatteryStats.Uid;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 /**
  * Contains information about package name, icon image, power usage about an
  * application or a system service.
  */
 public class BatterySipper implements Comparable<BatterySipper> {
     final Context mContext;
-    /* Cache cleared when PowerUsageSummary is destroyed */
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-    final ArrayList<BatterySipper> mRequestQueue;
-    final Handler mHandler;
     String name;
     Drawable icon;
     int iconId; // For passing to the detail screen.
@@ -61,19 +52,12 @@ public class BatterySipper implements Comparable<BatterySipper> {
     double noCoveragePercent;
     String defaultPackageName;
     String[] mPackages;
+    /** Set when the name and icon still need {@link #loadNameAndIcon()}. */
+    boolean mNameAndIconPending;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
-
-    BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
-            Handler handler, String label, DrainType drainType,
+    BatterySipper(Context context, String label, DrainType drainType,
             int iconId, Uid uid, double[] values) {
         mContext = context;
-        mRequestQueue = requestQueue;
-        mHandler = handler;
         this.values = values;
         name = label;
         this.drainType = drainType;
@@ -87,6 +71,20 @@ public class BatterySipper implements Comparable<BatterySipper> {
         uidObj = uid;
     }
 
+    /**
+     * Reuses this app sipper for a new snapshot of the same UID.  The name and
+     * icon are kept once they are resolved; the caller sets the other values.
+     */
+    void reuse(String label, Uid uid, double power) {
+        uidObj = uid;
+        value = power;
+        values[0] = power;
+        if (mPackages == null) {
+            name = label;
+            getQuickNameIconForUid(uid);
+        }
+    }
+
     double getSortValue() {
         return value;
     }
@@ -129,12 +127,15 @@ public class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidInfo cached = UidResolver.getInstance(mContext).peek(uid);
+        if (cached != null && cached.packages != null) {
+            // Only take the icon if it is already decoded; this runs on the
+            // main thread, so a cache miss is left to the name and icon loader.
+            applyUidInfo(cached, false);
+            if (icon == null) {
+                icon = mContext.getPackageManager().getDefaultActivityIcon();
+                mNameAndIconPending = true;
+            }
             return;
         }
         PackageManager pm = mContext.getPackageManager();
@@ -153,90 +154,38 @@ public class BatterySipper implements Comparable<BatterySipper> {
         } else {
             //name = packages[0];
         }
-        if (mHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
-            }
-        }
-    }
-
-    public static void clearUidCache() {
-        sUidCache.clear();
+        mNameAndIconPending = true;
     }
 
     /**
-     * Loads the app label and icon image and stores into the cache.
+     * Loads the app label and icon image through the shared resolver.
+     * @return true if the name and icon were updated and should be shown.
      */
-    public void loadNameAndIcon() {
+    public boolean loadNameAndIcon() {
         // Bail out if the current sipper is not an App sipper.
         if (uidObj == null) {
-            return;
-        }
-        PackageManager pm = mContext.getPackageManager();
-        final int uid = uidObj.getUid();
-        final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
-        mPackages = pm.getPackagesForUid(uid);
-        if (mPackages == null) {
-            name = Integer.toString(uid);
-            return;
+            return false;
         }
-
-        String[] packageLabels = new String[mPackages.length];
-        System.arraycopy(mPackages, 0, packageLabels, 0, mPackages.length);
-
-        int preferredIndex = -1;
-        // Convert package names to user-facing labels where possible
-        for (int i = 0; i < packageLabels.length; i++) {
-            // Check if package matches preferred package
-            if (packageLabels[i].equals(name)) preferredIndex = i;
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(packageLabels[i], 0);
-                CharSequence label = ai.loadLabel(pm);
-                if (label != null) {
-                    packageLabels[i] = label.toString();
-                }
-                if (ai.icon != 0) {
-                    defaultPackageName = mPackages[i];
-                    icon = ai.loadIcon(pm);
-                    break;
-                }
-            } catch (NameNotFoundException e) {
-            }
+        final UidInfo info = UidResolver.getInstance(mContext).resolve(uidObj.getUid());
+        mNameAndIconPending = false;
+        if (info.packages == null) {
+            name = Integer.toString(info.uid);
+            return false;
         }
-        if (icon == null) icon = defaultActivityIcon;
+        applyUidInfo(info, true);
+        return true;
+    }
 
-        if (packageLabels.length == 1) {
-            name = packageLabels[0];
-        } else {
-            // Look for an official name for this UID.
-            for (String pkgName : mPackages) {
-                try {
-                    final PackageInfo pi = pm.getPackageInfo(pkgName, 0);
-                    if (pi.sharedUserLabel != 0) {
-                        final CharSequence nm = pm.getText(pkgName,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            name = nm.toString();
-                            if (pi.applicationInfo.icon != 0) {
-                                defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
-                            }
-                            break;
-                        }
-                    }
-                } catch (PackageManager.NameNotFoundException e) {
-                }
-            }
-        }
-        final String uidString = Integer.toString(uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (mHandler != null) {
-            mHandler.sendMessage(
-                    mHandler.obtainMessage(BatteryStatsHelper.MSG_UPDATE_NAME_ICON, this));
+    private void applyUidInfo(UidInfo info, boolean blocking) {
+        mPackages = info.packages;
+        if (info.packages.length == 1) {
+            name = info.labels[0].toString();
+        } else if (info.sharedLabel != null) {
+            // The official name for this UID.
+            name = info.sharedLabel.toString();
         }
+        defaultPackageName = info.getIconPackage();
+        final UidResolver resolver = UidResolver.getInstance(mContext);
+        icon = blocking ? resolver.loadIcon(info) : resolver.peekIcon(info);
     }
 }
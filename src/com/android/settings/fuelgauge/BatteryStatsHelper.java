@@ -27,6 +27,7 @@ import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
@@ -55,6 +56,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -95,49 +97,107 @@ public class BatteryStatsHelper {
     // How much the apps together have left WIFI running.
     private long mAppWifiRunning;
 
-    /** Queue for fetching name and icon for an application */
-    private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
+    // Indexes into the counters read by readAppCounters().
+    private static final int COUNTER_PROCS = 0;
+    private static final int COUNTER_USER_TIME = 1;
+    private static final int COUNTER_SYSTEM_TIME = 2;
+    private static final int COUNTER_FOREGROUND_TIME = 3;
+    private static final int COUNTER_WAKELOCK_TIME = 4;
+    private static final int COUNTER_MOBILE_RX = 5;
+    private static final int COUNTER_MOBILE_TX = 6;
+    private static final int COUNTER_WIFI_RX = 7;
+    private static final int COUNTER_WIFI_TX = 8;
+    private static final int COUNTER_WIFI_RUNNING_TIME = 9;
+    private static final int COUNTER_WIFI_SCAN_TIME = 10;
+    private static final int COUNTER_SENSORS = 11;
+    private static final int COUNTER_SENSOR_TIME = 12;
+    private static final int COUNTER_WIFI_BATCHED_SCAN_TIME = 13;
+    private static final int COUNTER_COUNT = COUNTER_WIFI_BATCHED_SCAN_TIME
+            + BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS;
+
+    /**
+     * Power of one UID as of the last refresh, with the counters it was
+     * computed from and the sipper that shows it.
+     */
+    private static class AppPower {
+        long[] counters;
+        double power;
+        String packageWithHighestDrain;
+        long cpuTime;
+        long cpuFgTime;
+        long wakelockTime;
+        long gpsTime;
+        long wifiRunningTimeMs;
+        BatterySipper sipper;
+        int pass;
+    }
+
+    /** Per UID; only UIDs whose counters changed are recomputed on refresh. */
+    private final SparseArray<AppPower> mAppPowers = new SparseArray<AppPower>();
+    private final long[] mAppCounters = new long[COUNTER_COUNT];
+    private int mAppPowerPass;
+    // Inputs that the cached power depends on besides the counters.
+    private int mAppPowerWhich = -1;
+    private double mAppPowerMobilePerByte;
+    private double mAppPowerWifiPerByte;
+
+    private double[] mPowerCpuNormal;
+    private long[] mCpuSpeedStepTimes;
+    private SparseArray<Double> mSensorPower;
 
     private Activity mActivity;
-    private Handler mHandler;
+    /** Loads app names and icons; null without a handler to report to. */
+    private final NameAndIconLoader mNameAndIconLoader;
+
+    /**
+     * Receives the power usage list once {@link #refreshStats(boolean, RefreshCallback)}
+     * has it, on the main thread.
+     */
+    public interface RefreshCallback {
+        void onStatsRefreshed(List<BatterySipper> usageList);
+    }
 
-    private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    /** Fetches and parses the stats off the main thread, then refreshes on it. */
+    private class StatsLoadTask extends AsyncTask<Void, Void, BatteryStatsImpl> {
+        boolean mIncludeZeroConsumption;
+        RefreshCallback mCallback;
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
+        StatsLoadTask(boolean includeZeroConsumption, RefreshCallback callback) {
+            mIncludeZeroConsumption = includeZeroConsumption;
+            mCallback = callback;
         }
 
-        public void abort() {
-            mAbort = true;
+        @Override
+        protected BatteryStatsImpl doInBackground(Void... params) {
+            return loadStats(mBatteryInfo);
         }
 
         @Override
-        public void run() {
-            while (true) {
-                BatterySipper bs;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        mHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        return;
-                    }
-                    bs = mRequestQueue.remove(0);
-                }
-                bs.loadNameAndIcon();
+        protected void onPostExecute(BatteryStatsImpl stats) {
+            if (mLoadTask != this) {
+                return;
+            }
+            mLoadTask = null;
+            if (stats == null) {
+                return;
             }
+            mStats = stats;
+            refreshStats(mIncludeZeroConsumption);
+            mCallback.onStatsRefreshed(mUsageList);
         }
     }
 
-    private NameAndIconLoader mRequestThread;
+    private StatsLoadTask mLoadTask;
 
     public BatteryStatsHelper(Activity activity, Handler handler) {
         mActivity = activity;
-        mHandler = handler;
+        mNameAndIconLoader = handler != null ? new NameAndIconLoader(handler) : null;
     }
 
     /** Clears the current stats and forces recreating for future use. */
     public void clearStats() {
         mStats = null;
+        cancelLoad();
     }
 
     public BatteryStatsImpl getStats() {
@@ -162,16 +222,25 @@ public class BatteryStatsHelper {
     }
 
     public void pause() {
-        if (mRequestThread != null) {
-            mRequestThread.abort();
+        if (mNameAndIconLoader != null) {
+            mNameAndIconLoader.cancel();
         }
     }
 
     public void destroy() {
+        cancelLoad();
+        if (mNameAndIconLoader != null) {
+            mNameAndIconLoader.cancel();
+        }
         if (mActivity.isChangingConfigurations()) {
             sStatsXfer = mStats;
-        } else {
-            BatterySipper.sUidCache.clear();
+        }
+    }
+
+    private void cancelLoad() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
         }
     }
 
@@ -321,7 +390,31 @@ public class BatteryStatsHelper {
     }
 
     /**
-     * Refreshes the power usage list.
+     * Refreshes the power usage list without blocking on the stats service.  If the
+     * stats need to be loaded, they are fetched and parsed in the background and
+     * the callback runs when they are ready; otherwise it runs before this returns.
+     * A refresh requested while a load is running joins it, replacing the callback.
+     * @param includeZeroConsumption whether includes those applications which have consumed very
+     *                               little power up till now.
+     */
+    public void refreshStats(boolean includeZeroConsumption, RefreshCallback callback) {
+        if (mStats != null) {
+            cancelLoad();
+            refreshStats(includeZeroConsumption);
+            callback.onStatsRefreshed(mUsageList);
+            return;
+        }
+        if (mLoadTask != null) {
+            mLoadTask.mIncludeZeroConsumption = includeZeroConsumption;
+            mLoadTask.mCallback = callback;
+            return;
+        }
+        mLoadTask = new StatsLoadTask(includeZeroConsumption, callback);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Refreshes the power usage list, loading the stats on the calling thread if needed.
      * @param includeZeroConsumption whether includes those applications which have consumed very
      *                               little power up till now.
      */
@@ -335,6 +428,11 @@ public class BatteryStatsHelper {
         mBluetoothPower = 0;
         mAppWifiRunning = 0;
 
+        if (mNameAndIconLoader != null) {
+            // Sippers are reused below; stop loading into them.
+            mNameAndIconLoader.cancel();
+        }
+
         mUsageList.clear();
         mWifiSippers.clear();
         mBluetoothSippers.clear();
@@ -346,213 +444,82 @@ public class BatteryStatsHelper {
 
         Collections.sort(mUsageList);
 
-        if (mHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+        if (mNameAndIconLoader != null) {
+            // Queue in list order, so the rows at the top of the screen load first.
+            // Sippers folded into other entries are never shown and are skipped.
+            for (int i=0; i<mUsageList.size(); i++) {
+                final BatterySipper bs = mUsageList.get(i);
+                if (bs.mNameAndIconPending) {
+                    mNameAndIconLoader.add(bs);
                 }
             }
+            mNameAndIconLoader.start();
         }
     }
 
     private void processAppUsage(boolean includeZeroConsumption) {
-        SensorManager sensorManager = (SensorManager) mActivity.getSystemService(
-                Context.SENSOR_SERVICE);
         final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
-        }
         final double mobilePowerPerByte = getMobilePowerPerByte();
         final double wifiPowerPerByte = getWifiPowerPerByte();
+        if (which != mAppPowerWhich || mobilePowerPerByte != mAppPowerMobilePerByte
+                || wifiPowerPerByte != mAppPowerWifiPerByte) {
+            // The cached results were computed with different inputs.
+            mAppPowers.clear();
+            mAppPowerWhich = which;
+            mAppPowerMobilePerByte = mobilePowerPerByte;
+            mAppPowerWifiPerByte = wifiPowerPerByte;
+        }
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
         long appWakelockTime = 0;
         BatterySipper osApp = null;
         mStatsPeriod = uSecTime;
+        final int pass = ++mAppPowerPass;
+        int recomputed = 0;
         SparseArray<? extends Uid> uidStats = mStats.getUidStats();
         final int NU = uidStats.size();
         for (int iu = 0; iu < NU; iu++) {
             Uid u = uidStats.valueAt(iu);
-            double p; // in mAs
-            double power = 0; // in mAs
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid());
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    if (DEBUG && processPower != 0) {
-                        Log.i(TAG, String.format("process %s, cpu power=%.2f",
-                                ent.getKey(), processPower / 1000));
-                    }
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
+            AppPower app = mAppPowers.get(u.getUid());
+            if (app == null) {
+                app = new AppPower();
+                mAppPowers.put(u.getUid(), app);
             }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+            app.pass = pass;
+            readAppCounters(u, uSecTime, which, mAppCounters);
+            if (!Arrays.equals(mAppCounters, app.counters)) {
+                app.counters = mAppCounters.clone();
+                computeAppPower(u, app, uSecTime, which, mobilePowerPerByte, wifiPowerPerByte);
+                recomputed++;
             }
-            power /= 1000;
-            if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
-            }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
-
-            // Add cost of holding a wake lock
-            p = (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
-
-            // Add cost of mobile traffic
-            final long mobileRx = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, mStatsType);
-            final long mobileTx = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, mStatsType);
-            p = (mobileRx + mobileTx) * mobilePowerPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("mobile power=%.2f", p));
-
-            // Add cost of wifi traffic
-            final long wifiRx = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, mStatsType);
-            final long wifiTx = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, mStatsType);
-            p = (wifiRx + wifiTx) * wifiPowerPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi power=%.2f", p));
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
-            mAppWifiRunning += wifiRunningTimeMs;
-            p = (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
-
-            // Add cost of WIFI scans
-            long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
-            p = (wifiScanTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_SCAN)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
-            for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
-                long batchScanTimeMs = u.getWifiBatchedScanTime(bin, uSecTime, which) / 1000;
-                p = (batchScanTimeMs
-                        * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_BATCHED_SCAN, bin));
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("wifi batched scanning lvl %d = %.2f", bin, p));
-                }
-            }
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorHandle = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorHandle) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        List<Sensor> sensorList = sensorManager.getSensorList(
-                                android.hardware.Sensor.TYPE_ALL);
-                        for (android.hardware.Sensor s : sensorList) {
-                            if (s.getHandle() == sensorHandle) {
-                                multiplier = s.getPower();
-                                break;
-                            }
-                        }
-                }
-                p = (multiplier * sensorTime) / 1000;
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
-                }
-            }
-
-            if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
+            final double power = app.power;
+            appWakelockTime += app.wakelockTime;
+            mAppWifiRunning += app.wifiRunningTimeMs;
 
             // Add the app to the list if it is consuming power
             boolean isOtherUser = false;
             final int userId = UserHandle.getUserId(u.getUid());
             if (power != 0 || includeZeroConsumption || u.getUid() == 0) {
-                BatterySipper app = new BatterySipper(mActivity, mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
-                        new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
-                app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
-                app.wakeLockTime = wakelockTime;
-                app.mobileRxBytes = mobileRx;
-                app.mobileTxBytes = mobileTx;
-                app.wifiRxBytes = wifiRx;
-                app.wifiTxBytes = wifiTx;
+                BatterySipper bs = app.sipper;
+                if (bs == null) {
+                    bs = new BatterySipper(mActivity, app.packageWithHighestDrain,
+                            DrainType.APP, 0, u, new double[] {power});
+                    app.sipper = bs;
+                } else {
+                    bs.reuse(app.packageWithHighestDrain, u, power);
+                }
+                bs.cpuTime = app.cpuTime;
+                bs.gpsTime = app.gpsTime;
+                bs.wifiRunningTime = app.wifiRunningTimeMs;
+                bs.cpuFgTime = app.cpuFgTime;
+                bs.wakeLockTime = app.wakelockTime;
+                bs.mobileRxBytes = app.counters[COUNTER_MOBILE_RX];
+                bs.mobileTxBytes = app.counters[COUNTER_MOBILE_TX];
+                bs.wifiRxBytes = app.counters[COUNTER_WIFI_RX];
+                bs.wifiTxBytes = app.counters[COUNTER_WIFI_TX];
                 if (u.getUid() == Process.WIFI_UID) {
-                    mWifiSippers.add(app);
+                    mWifiSippers.add(bs);
                 } else if (u.getUid() == Process.BLUETOOTH_UID) {
-                    mBluetoothSippers.add(app);
+                    mBluetoothSippers.add(bs);
                 } else if (userId != UserHandle.myUserId()
                         && UserHandle.getAppId(u.getUid()) >= Process.FIRST_APPLICATION_UID) {
                     isOtherUser = true;
@@ -561,12 +528,12 @@ public class BatteryStatsHelper {
                         list = new ArrayList<BatterySipper>();
                         mUserSippers.put(userId, list);
                     }
-                    list.add(app);
+                    list.add(bs);
                 } else {
-                    mUsageList.add(app);
+                    mUsageList.add(bs);
                 }
                 if (u.getUid() == 0) {
-                    osApp = app;
+                    osApp = bs;
                 }
             }
             if (power != 0 || includeZeroConsumption) {
@@ -589,6 +556,14 @@ public class BatteryStatsHelper {
             }
         }
 
+        // Forget UIDs that are gone from the stats.
+        for (int i = mAppPowers.size() - 1; i >= 0; i--) {
+            if (mAppPowers.valueAt(i).pass != pass) {
+                mAppPowers.removeAt(i);
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Recomputed power of " + recomputed + " of " + NU + " UIDs");
+
         // The device has probably been awake for longer than the screen on
         // time and application wake lock time would account for.  Assign
         // this remainder to the OS, if possible.
@@ -610,6 +585,238 @@ public class BatteryStatsHelper {
         }
     }
 
+    /**
+     * Computes the power of one UID from its full stats.
+     */
+    private void computeAppPower(Uid u, AppPower app, long uSecTime, int which,
+            double mobilePowerPerByte, double wifiPowerPerByte) {
+        final int speedSteps = mPowerProfile.getNumSpeedSteps();
+        if (mPowerCpuNormal == null) {
+            mPowerCpuNormal = new double[speedSteps];
+            for (int p = 0; p < speedSteps; p++) {
+                mPowerCpuNormal[p] = mPowerProfile.getAveragePower(
+                        PowerProfile.POWER_CPU_ACTIVE, p);
+            }
+            mCpuSpeedStepTimes = new long[speedSteps];
+        }
+        final double[] powerCpuNormal = mPowerCpuNormal;
+        final long[] cpuSpeedStepTimes = mCpuSpeedStepTimes;
+        double p; // in mAs
+        double power = 0; // in mAs
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        long cpuTime = 0;
+        long cpuFgTime = 0;
+        long wakelockTime = 0;
+        long gpsTime = 0;
+        if (DEBUG) Log.i(TAG, "UID " + u.getUid());
+        if (processStats.size() > 0) {
+            // Process CPU time
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long foregroundTime = ps.getForegroundTime(which);
+                cpuFgTime += foregroundTime * 10; // convert to millis
+                final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                int totalTimeAtSpeeds = 0;
+                // Get the total first
+                for (int step = 0; step < speedSteps; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                // Then compute the ratio of time spent at each speed
+                double processPower = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                    processPower += ratio * tmpCpuTime * powerCpuNormal[step];
+                }
+                cpuTime += tmpCpuTime;
+                if (DEBUG && processPower != 0) {
+                    Log.i(TAG, String.format("process %s, cpu power=%.2f",
+                            ent.getKey(), processPower / 1000));
+                }
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+        }
+        if (cpuFgTime > cpuTime) {
+            if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+            }
+            cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+        }
+        power /= 1000;
+        if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
+
+        // Process wake lock usage
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            Uid.Wakelock wakelock = wakelockEntry.getValue();
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        wakelockTime /= 1000; // convert to millis
+
+        // Add cost of holding a wake lock
+        p = (wakelockTime
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
+
+        // Add cost of mobile traffic
+        final long mobileRx = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, which);
+        final long mobileTx = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, which);
+        p = (mobileRx + mobileTx) * mobilePowerPerByte;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("mobile power=%.2f", p));
+
+        // Add cost of wifi traffic
+        final long wifiRx = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, which);
+        final long wifiTx = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, which);
+        p = (wifiRx + wifiTx) * wifiPowerPerByte;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi power=%.2f", p));
+
+        // Add cost of keeping WIFI running.
+        long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        p = (wifiRunningTimeMs
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
+
+        // Add cost of WIFI scans
+        long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
+        p = (wifiScanTimeMs
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_SCAN)) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
+        for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
+            long batchScanTimeMs = u.getWifiBatchedScanTime(bin, uSecTime, which) / 1000;
+            p = (batchScanTimeMs
+                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_BATCHED_SCAN, bin));
+            power += p;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("wifi batched scanning lvl %d = %.2f", bin, p));
+            }
+        }
+
+        // Process Sensor usage
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            int sensorHandle = sensor.getHandle();
+            BatteryStats.Timer timer = sensor.getSensorTime();
+            long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = 0;
+            switch (sensorHandle) {
+                case Uid.Sensor.GPS:
+                    multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
+                    gpsTime = sensorTime;
+                    break;
+                default:
+                    multiplier = getSensorPower(sensorHandle);
+            }
+            p = (multiplier * sensorTime) / 1000;
+            power += p;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
+            }
+        }
+
+        if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
+
+        app.power = power;
+        app.packageWithHighestDrain = packageWithHighestDrain;
+        app.cpuTime = cpuTime;
+        app.cpuFgTime = cpuFgTime;
+        app.wakelockTime = wakelockTime;
+        app.gpsTime = gpsTime;
+        app.wifiRunningTimeMs = wifiRunningTimeMs;
+    }
+
+    /**
+     * Reads the counters that the power of a UID is computed from, without
+     * the per-speed-step CPU times and sensor power lookups.  If they match
+     * the last pass, so does the power.
+     */
+    private static void readAppCounters(Uid u, long uSecTime, int which, long[] out) {
+        Arrays.fill(out, 0);
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        out[COUNTER_PROCS] = processStats.size();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent : processStats.entrySet()) {
+            Uid.Proc ps = ent.getValue();
+            out[COUNTER_USER_TIME] += ps.getUserTime(which);
+            out[COUNTER_SYSTEM_TIME] += ps.getSystemTime(which);
+            out[COUNTER_FOREGROUND_TIME] += ps.getForegroundTime(which);
+        }
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            BatteryStats.Timer timer = wakelockEntry.getValue().getWakeTime(
+                    BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                out[COUNTER_WAKELOCK_TIME] += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        out[COUNTER_MOBILE_RX] = u.getNetworkActivityCount(NETWORK_MOBILE_RX_BYTES, which);
+        out[COUNTER_MOBILE_TX] = u.getNetworkActivityCount(NETWORK_MOBILE_TX_BYTES, which);
+        out[COUNTER_WIFI_RX] = u.getNetworkActivityCount(NETWORK_WIFI_RX_BYTES, which);
+        out[COUNTER_WIFI_TX] = u.getNetworkActivityCount(NETWORK_WIFI_TX_BYTES, which);
+        out[COUNTER_WIFI_RUNNING_TIME] = u.getWifiRunningTime(uSecTime, which);
+        out[COUNTER_WIFI_SCAN_TIME] = u.getWifiScanTime(uSecTime, which);
+        for (int bin = 0; bin < BatteryStats.Uid.NUM_WIFI_BATCHED_SCAN_BINS; bin++) {
+            out[COUNTER_WIFI_BATCHED_SCAN_TIME + bin] =
+                    u.getWifiBatchedScanTime(bin, uSecTime, which);
+        }
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        out[COUNTER_SENSORS] = sensorStats.size();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            out[COUNTER_SENSOR_TIME] += sensor.getSensorTime().getTotalTimeLocked(
+                    uSecTime, which);
+        }
+    }
+
+    /**
+     * Returns the power of the sensor with the given handle, from a table
+     * built on first use.
+     */
+    private double getSensorPower(int sensorHandle) {
+        if (mSensorPower == null) {
+            SensorManager sensorManager = (SensorManager) mActivity.getSystemService(
+                    Context.SENSOR_SERVICE);
+            List<Sensor> sensorList = sensorManager.getSensorList(
+                    android.hardware.Sensor.TYPE_ALL);
+            mSensorPower = new SparseArray<Double>(sensorList.size());
+            for (android.hardware.Sensor s : sensorList) {
+                if (mSensorPower.indexOfKey(s.getHandle()) < 0) {
+                    mSensorPower.put(s.getHandle(), (double) s.getPower());
+                }
+            }
+        }
+        Double power = mSensorPower.get(sensorHandle);
+        return power != null ? power : 0;
+    }
+
     private void addPhoneUsage(long uSecNow) {
         long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mStatsType) / 1000;
         double phoneOnPower = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
@@ -797,8 +1004,8 @@ public class BatteryStatsHelper {
             double power) {
         if (power > mMaxPower) mMaxPower = power;
         mTotalPower += power;
-        BatterySipper bs = new BatterySipper(mActivity, mRequestQueue, mHandler,
-                label, drainType, iconId, null, new double[] {power});
+        BatterySipper bs = new BatterySipper(mActivity, label, drainType, iconId, null,
+                new double[] {power});
         bs.usageTime = time;
         bs.iconId = iconId;
         mUsageList.add(bs);
@@ -821,16 +1028,28 @@ public class BatteryStatsHelper {
     }
 
     private void load() {
+        mStats = loadStats(mBatteryInfo);
+    }
+
+    /**
+     * Fetches a snapshot of the stats from the service and parses it.  May be called
+     * on any thread.
+     */
+    static BatteryStatsImpl loadStats(IBatteryStats batteryInfo) {
+        Parcel parcel = Parcel.obtain();
         try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
+            byte[] data = batteryInfo.getStatistics();
             parcel.unmarshall(data, 0, data.length);
             parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
                     .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
+            return null;
+        } finally {
+            parcel.recycle();
         }
     }
 }
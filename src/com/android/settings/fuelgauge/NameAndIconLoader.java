@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the names and icons of app sippers on a small pool of threads shared
+ * by all loaders, in the order they were queued.  Loaded sippers are sent to
+ * the handler in batches as an {@link ArrayList} in
+ * {@link BatteryStatsHelper#MSG_UPDATE_NAME_ICON}, followed by
+ * {@link BatteryStatsHelper#MSG_REPORT_FULLY_DRAWN} once the queue is empty.
+ */
+final class NameAndIconLoader {
+    private static final int MAX_WORKERS = 2;
+
+    /** How long loaded sippers are collected before the handler hears of them. */
+    private static final long BATCH_DELAY_MS = 100;
+
+    private static final ExecutorService sExecutor;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_WORKERS, MAX_WORKERS, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "BatteryUsage Icon Loader #" + mCount.getAndIncrement());
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private final Handler mHandler;
+
+    // All guarded by this.
+    private final ArrayDeque<BatterySipper> mQueue = new ArrayDeque<BatterySipper>();
+    private ArrayList<BatterySipper> mLoaded = new ArrayList<BatterySipper>();
+    /** Bumped on cancel; workers of an older generation stop. */
+    private int mGeneration;
+    private int mWorkers;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NameAndIconLoader.this) {
+                flushLocked();
+            }
+        }
+    };
+
+    NameAndIconLoader(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Queues a sipper behind those already queued.  Call {@link #start()} to
+     * begin loading.
+     */
+    synchronized void add(BatterySipper bs) {
+        mQueue.add(bs);
+    }
+
+    /**
+     * Starts enough workers for the queued sippers.
+     */
+    synchronized void start() {
+        final int needed = Math.min(MAX_WORKERS, mQueue.size()) - mWorkers;
+        for (int i=0; i<needed; i++) {
+            mWorkers++;
+            sExecutor.execute(new Worker(mGeneration));
+        }
+    }
+
+    /**
+     * Drops the queue and any loaded sippers not yet sent to the handler.
+     * Loads already running finish, but their results are not reported.
+     */
+    synchronized void cancel() {
+        mGeneration++;
+        mQueue.clear();
+        mLoaded = new ArrayList<BatterySipper>();
+        mWorkers = 0;
+        mHandler.removeCallbacks(mFlush);
+        mHandler.removeMessages(BatteryStatsHelper.MSG_UPDATE_NAME_ICON);
+    }
+
+    private void flushLocked() {
+        if (!mLoaded.isEmpty()) {
+            mHandler.sendMessage(mHandler.obtainMessage(
+                    BatteryStatsHelper.MSG_UPDATE_NAME_ICON, mLoaded));
+            mLoaded = new ArrayList<BatterySipper>();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int mWorkerGeneration;
+
+        Worker(int generation) {
+            mWorkerGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final BatterySipper bs;
+                synchronized (NameAndIconLoader.this) {
+                    if (mWorkerGeneration != mGeneration) {
+                        return;
+                    }
+                    bs = mQueue.poll();
+                    if (bs == null) {
+                        if (--mWorkers == 0) {
+                            mHandler.removeCallbacks(mFlush);
+                            flushLocked();
+                            mHandler.sendEmptyMessage(BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN);
+                        }
+                        return;
+                    }
+                }
+                final boolean updated = bs.loadNameAndIcon();
+                synchronized (NameAndIconLoader.this) {
+                    if (mWorkerGeneration != mGeneration) {
+                        return;
+                    }
+                    if (updated) {
+                        if (mLoaded.isEmpty()) {
+                            mHandler.postDelayed(mFlush, BATCH_DELAY_MS);
+                        }
+                        mLoaded.add(bs);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -195,6 +195,23 @@ public class PowerUsageSummary extends PreferenceFragment {
     }
 
     private void refreshStats() {
+        // The list is rebuilt once the stats are ready, which may take a round
+        // trip to a background thread.
+        mStatsHelper.refreshStats(false, mRefreshCallback);
+    }
+
+    private final BatteryStatsHelper.RefreshCallback mRefreshCallback =
+            new BatteryStatsHelper.RefreshCallback() {
+        @Override
+        public void onStatsRefreshed(List<BatterySipper> usageList) {
+            if (getActivity() == null) {
+                return;
+            }
+            updateAppList(usageList);
+        }
+    };
+
+    private void updateAppList(List<BatterySipper> usageList) {
         mAppListGroup.removeAll();
         mAppListGroup.setOrderingAsAdded(false);
 
@@ -210,8 +227,6 @@ public class PowerUsageSummary extends PreferenceFragment {
             addNotAvailableMessage();
             return;
         }
-        mStatsHelper.refreshStats(false);
-        List<BatterySipper> usageList = mStatsHelper.getUsageList();
         for (BatterySipper sipper : usageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
             final double percentOfTotal =
@@ -239,13 +254,17 @@ public class PowerUsageSummary extends PreferenceFragment {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case BatteryStatsHelper.MSG_UPDATE_NAME_ICON:
-                    BatterySipper bs = (BatterySipper) msg.obj;
-                    PowerGaugePreference pgp =
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(bs.uidObj.getUid()));
-                    if (pgp != null) {
-                        pgp.setIcon(bs.icon);
-                        pgp.setTitle(bs.name);
+                    @SuppressWarnings("unchecked")
+                    List<BatterySipper> loaded = (List<BatterySipper>) msg.obj;
+                    for (int i=0; i<loaded.size(); i++) {
+                        BatterySipper bs = loaded.get(i);
+                        PowerGaugePreference pgp =
+                                (PowerGaugePreference) findPreference(
+                                        Integer.toString(bs.uidObj.getUid()));
+                        if (pgp != null) {
+                            pgp.setIcon(bs.icon);
+                            pgp.setTitle(bs.name);
+                        }
                     }
                     break;
                 case BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN:
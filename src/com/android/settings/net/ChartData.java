@@ -24,4 +24,23 @@ public class ChartData {
     public NetworkStatsHistory detail;
     public NetworkStatsHistory detailDefault;
     public NetworkStatsHistory detailForeground;
+
+    /** Range total indexes of the histories above, when present. */
+    public NetworkStatsHistoryIndex networkIndex;
+    public NetworkStatsHistoryIndex detailIndex;
+    public NetworkStatsHistoryIndex detailDefaultIndex;
+    public NetworkStatsHistoryIndex detailForegroundIndex;
+
+    /**
+     * Build the indexes of all present histories; done once when loaded so
+     * inspection range changes don't walk the histories.
+     */
+    public void buildIndexes() {
+        networkIndex = network != null ? new NetworkStatsHistoryIndex(network) : null;
+        detailIndex = detail != null ? new NetworkStatsHistoryIndex(detail) : null;
+        detailDefaultIndex = detailDefault != null
+                ? new NetworkStatsHistoryIndex(detailDefault) : null;
+        detailForegroundIndex = detailForeground != null
+                ? new NetworkStatsHistoryIndex(detailForeground) : null;
+    }
 }
@@ -33,6 +33,17 @@ import android.os.RemoteException;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -41,6 +52,29 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    private static final int MAX_FETCH_THREADS = 4;
+
+    /**
+     * Shared by all loaders; bounds the number of concurrent history
+     * requests to the stats service.
+     */
+    private static final ExecutorService sFetchExecutor;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_FETCH_THREADS, MAX_FETCH_THREADS, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ChartDataLoader #" + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sFetchExecutor = executor;
+    }
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -75,7 +109,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final int fields = mArgs.getInt(KEY_FIELDS);
 
         try {
-            return loadInBackground(template, app, fields);
+            return loadChartData(mSession, template, app, fields, sFetchExecutor);
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -83,34 +117,97 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         }
     }
 
-    private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
-            throws RemoteException {
+    /**
+     * Loads the chart data, fanning the per-UID history requests out on the
+     * given executor, or making them one after the other if it is
+     * {@code null}.
+     */
+    static ChartData loadChartData(final INetworkStatsSession session,
+            final NetworkTemplate template, AppItem app, final int fields,
+            ExecutorService executor) throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        final int size = app != null ? app.uids.size() : 0;
+        final int[] sets = { SET_DEFAULT, SET_FOREGROUND };
+
+        final ArrayList<Future<NetworkStatsHistory>> futures =
+                new ArrayList<Future<NetworkStatsHistory>>();
+        if (executor != null && size * sets.length > 1) {
+            for (int i = 0; i < size; i++) {
+                final int uid = app.uids.keyAt(i);
+                for (final int set : sets) {
+                    futures.add(executor.submit(new Callable<NetworkStatsHistory>() {
+                        @Override
+                        public NetworkStatsHistory call() throws RemoteException {
+                            return session.getHistoryForUid(
+                                    template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                        }
+                    }));
+                }
+            }
+        }
+
+        try {
+            // network history is fetched here while the UIDs are in flight
+            data.network = session.getHistoryForNetwork(template, fields);
+
+            if (app == null) {
+                data.buildIndexes();
+                return data;
+            }
 
-        if (app != null) {
-            // load stats for current uid and template
-            final int size = app.uids.size();
+            // merge stage: combine per-UID histories of each set in UID order
+            final NetworkStatsHistory[] perSet = new NetworkStatsHistory[sets.length];
+            int next = 0;
             for (int i = 0; i < size; i++) {
                 final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+                for (int s = 0; s < sets.length; s++) {
+                    final NetworkStatsHistory history;
+                    if (futures.isEmpty()) {
+                        history = session.getHistoryForUid(
+                                template, uid, sets[s], TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                    } else {
+                        history = getResult(futures.get(next++));
+                    }
+                    perSet[s] = combine(perSet[s], history);
+                }
             }
 
-            if (size > 0) {
+            if (size == 0) {
+                data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            } else {
+                data.detailDefault = perSet[0];
+                data.detailForeground = perSet[1];
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
-            } else {
-                data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
-                data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
-                data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            }
+            data.buildIndexes();
+            return data;
+        } finally {
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).cancel(true);
             }
         }
+    }
 
-        return data;
+    private static NetworkStatsHistory getResult(Future<NetworkStatsHistory> future)
+            throws RemoteException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
     }
 
     @Override
@@ -126,15 +223,11 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Combine {@link NetworkStatsHistory} with an existing
+     * {@link NetworkStatsHistory} if provided.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
+    private static NetworkStatsHistory combine(
+            NetworkStatsHistory existing, NetworkStatsHistory history) {
         if (existing != null) {
             existing.recordEntireHistory(history);
             return existing;
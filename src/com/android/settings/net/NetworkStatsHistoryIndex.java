@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStatsHistory;
+
+import java.util.Arrays;
+
+/**
+ * Running totals of rx + tx bytes over the buckets of a
+ * {@link NetworkStatsHistory}, so the total of any time range is two binary
+ * searches with interpolation in the boundary buckets, without walking or
+ * allocating entries.  Reflects the history at the time it was built.
+ */
+public class NetworkStatsHistoryIndex {
+    private final long mBucketDuration;
+    private final long[] mBucketStart;
+    /** Bytes of all buckets before index i. */
+    private final long[] mCumulative;
+
+    public NetworkStatsHistoryIndex(NetworkStatsHistory history) {
+        final int size = history != null ? history.size() : 0;
+        mBucketDuration = history != null ? history.getBucketDuration() : 0;
+        mBucketStart = new long[size];
+        mCumulative = new long[size + 1];
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = history.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
+    }
+
+    public int size() {
+        return mBucketStart.length;
+    }
+
+    public long getBucketDuration() {
+        return mBucketDuration;
+    }
+
+    public long getBucketStart(int index) {
+        return mBucketStart[index];
+    }
+
+    /**
+     * Bytes of all buckets before the given index.
+     */
+    public long getTotalBefore(int index) {
+        return mCumulative[index];
+    }
+
+    /**
+     * Bytes recorded before the given time, counting the bucket containing
+     * it in proportion, considering only the first {@code limit} buckets.
+     */
+    public long getTotalBefore(long time, int limit) {
+        int i = Arrays.binarySearch(mBucketStart, 0, limit, time);
+        if (i < 0) {
+            // index of last bucket starting before time
+            i = -i - 2;
+        }
+        if (i < 0) {
+            return 0;
+        }
+        final long offset = time - mBucketStart[i];
+        if (offset >= mBucketDuration) {
+            return mCumulative[i + 1];
+        }
+        return mCumulative[i] + (mCumulative[i + 1] - mCumulative[i]) * offset / mBucketDuration;
+    }
+
+    /**
+     * Bytes recorded between the given times, counting boundary buckets in
+     * proportion.
+     */
+    public long getTotal(long start, long end) {
+        final int size = mBucketStart.length;
+        return getTotalBefore(end, size) - getTotalBefore(start, size);
+    }
+
+    /**
+     * Same as {@link #getTotal(long, long)}, except that the bucket still
+     * being filled at {@code now} counts in full when it overlaps the range,
+     * matching {@link NetworkStatsHistory#getValues(long, long, long,
+     * NetworkStatsHistory.Entry)}.
+     */
+    public long getTotal(long start, long end, long now) {
+        long total = getTotal(start, end);
+
+        int active = Arrays.binarySearch(mBucketStart, now);
+        if (active < 0) {
+            active = -active - 2;
+        }
+        if (active >= 0) {
+            final long activeStart = mBucketStart[active];
+            final long activeEnd = activeStart + mBucketDuration;
+            if (activeStart < now && activeEnd > now && activeStart < end && activeEnd > start) {
+                final long bytes = mCumulative[active + 1] - mCumulative[active];
+                final long overlap = Math.min(activeEnd, end) - Math.max(activeStart, start);
+                total += bytes - bytes * overlap / mBucketDuration;
+            }
+        }
+        return total;
+    }
+}
@@ -16,19 +16,87 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.util.LruCache;
+
+import com.android.internal.util.Objects;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loads the per-UID summary for a template and range, already collapsed
+ * and sorted into a {@link UidUsageSummary} for the data usage list.
+ * Summaries of ranges that closed a while ago can no longer change and are
+ * cached across loaders until a UID is removed.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<UidUsageSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
+    private static final int MAX_CACHED_SUMMARIES = 16;
+
+    /**
+     * Stats are persisted with some delay, so a range is only considered
+     * closed once it ended this long ago.
+     */
+    private static final long CLOSED_GRACE = DAY_IN_MILLIS;
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+
+        Key(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, start, end);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return Objects.equal(template, other.template) && start == other.start
+                        && end == other.end;
+            }
+            return false;
+        }
+    }
+
+    private static final LruCache<Key, NetworkStats> sClosedCache =
+            new LruCache<Key, NetworkStats>(MAX_CACHED_SUMMARIES);
+    private static boolean sReceiverRegistered;
+
+    /**
+     * Usage of a removed UID is moved to {@link android.net.TrafficStats#UID_REMOVED},
+     * which changes even closed ranges.
+     */
+    private static final BroadcastReceiver sUidRemovedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            sClosedCache.evictAll();
+        }
+    };
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -44,6 +112,14 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         super(context);
         mSession = session;
         mArgs = args;
+
+        synchronized (sClosedCache) {
+            if (!sReceiverRegistered) {
+                context.getApplicationContext().registerReceiver(sUidRemovedReceiver,
+                        new IntentFilter(Intent.ACTION_UID_REMOVED));
+                sReceiverRegistered = true;
+            }
+        }
     }
 
     @Override
@@ -53,16 +129,27 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public UidUsageSummary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
-        try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
-        } catch (RemoteException e) {
-            return null;
+        final Key key = new Key(template, start, end);
+        NetworkStats stats = sClosedCache.get(key);
+        if (stats == null) {
+            try {
+                stats = mSession.getSummaryForAllUid(template, start, end, false);
+            } catch (RemoteException e) {
+                return null;
+            }
+            if (stats != null && end + CLOSED_GRACE < System.currentTimeMillis()) {
+                sClosedCache.put(key, stats);
+            }
         }
+
+        final int[] restrictedUids = NetworkPolicyManager.from(getContext()).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return UidUsageSummary.build(stats, restrictedUids, ActivityManager.getCurrentUser());
     }
 
     @Override
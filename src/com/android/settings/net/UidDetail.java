@@ -22,4 +22,7 @@ public class UidDetail {
     public CharSequence label;
     public CharSequence[] detailLabels;
     public Drawable icon;
+
+    /** Resolver information this was built from, if any. */
+    UidResolver.UidInfo source;
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Loads {@link UidDetail} for list rows on a single background thread,
+ * binding the icon and title of the row when finished.  The most recently
+ * bound rows are loaded first, a row that is recycled for another UID
+ * drops its pending request, and rows showing the same UID share one load.
+ * All public methods must be called on the main thread.
+ */
+public class UidDetailLoader {
+    private static final String TAG = "UidDetailLoader";
+    private static final boolean LOGD = false;
+
+    private final UidDetailProvider mProvider;
+    private final Handler mMainHandler;
+    private final Handler mBackgroundHandler;
+
+    /** Rows waiting for each UID.  Main thread only. */
+    private final SparseArray<ArrayList<View>> mWaiting = new SparseArray<ArrayList<View>>();
+
+    // Synchronize on mQueue for the following.
+    /** UIDs not yet loading, most recently requested first. */
+    private final LinkedList<Integer> mQueue = new LinkedList<Integer>();
+    private int mLoadingUid;
+    private boolean mLoading;
+    private int mMaxQueueDepth;
+    private int mLoads;
+    private int mWastedLoads;
+    private int mCancelled;
+
+    public UidDetailLoader(UidDetailProvider provider) {
+        mProvider = provider;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        final HandlerThread thread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mBackgroundHandler = new BackgroundHandler(thread.getLooper());
+    }
+
+    /**
+     * Binds the detail of the given UID to the row, loading it in the
+     * background if it is not cached yet.
+     */
+    public void bindView(int uid, View target) {
+        final Integer previous = (Integer) target.getTag();
+        if (previous != null) {
+            if (previous == uid) {
+                requeue(uid);
+                return;
+            }
+            cancel(previous, target);
+        }
+
+        final UidDetail cachedDetail = mProvider.getUidDetail(uid, false);
+        if (cachedDetail != null) {
+            bindView(cachedDetail, target);
+            return;
+        }
+
+        bindView(null, target);
+        target.setTag(uid);
+        ArrayList<View> views = mWaiting.get(uid);
+        if (views == null) {
+            views = new ArrayList<View>();
+            mWaiting.put(uid, views);
+        }
+        views.add(target);
+        requeue(uid);
+    }
+
+    /**
+     * Drops all pending requests and stops the background thread.
+     */
+    public void release() {
+        synchronized (mQueue) {
+            mQueue.clear();
+            if (LOGD) {
+                Log.d(TAG, "loads=" + mLoads + " wasted=" + mWastedLoads + " cancelled="
+                        + mCancelled + " maxQueueDepth=" + mMaxQueueDepth);
+            }
+        }
+        for (int i=0; i<mWaiting.size(); i++) {
+            final ArrayList<View> views = mWaiting.valueAt(i);
+            for (int j=0; j<views.size(); j++) {
+                views.get(j).setTag(null);
+            }
+        }
+        mWaiting.clear();
+        mBackgroundHandler.getLooper().quit();
+    }
+
+    /**
+     * Moves the UID to the front of the queue, unless it is already
+     * loading.
+     */
+    private void requeue(int uid) {
+        synchronized (mQueue) {
+            if (mLoading && mLoadingUid == uid) {
+                return;
+            }
+            mQueue.remove((Integer) uid);
+            mQueue.addFirst(uid);
+            if (mQueue.size() > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueue.size();
+            }
+        }
+        if (!mBackgroundHandler.hasMessages(MSG_LOAD)) {
+            mBackgroundHandler.sendEmptyMessage(MSG_LOAD);
+        }
+    }
+
+    private void cancel(int uid, View target) {
+        target.setTag(null);
+        final ArrayList<View> views = mWaiting.get(uid);
+        if (views == null) {
+            return;
+        }
+        views.remove(target);
+        if (views.isEmpty()) {
+            mWaiting.remove(uid);
+            synchronized (mQueue) {
+                if (mQueue.remove((Integer) uid)) {
+                    mCancelled++;
+                }
+            }
+        }
+    }
+
+    private void deliver(int uid, UidDetail detail) {
+        final ArrayList<View> views = mWaiting.get(uid);
+        if (views == null) {
+            synchronized (mQueue) {
+                mWastedLoads++;
+            }
+            return;
+        }
+        mWaiting.remove(uid);
+        for (int i=0; i<views.size(); i++) {
+            final View target = views.get(i);
+            final Integer tag = (Integer) target.getTag();
+            if (tag != null && tag == uid) {
+                target.setTag(null);
+                bindView(detail, target);
+            }
+        }
+    }
+
+    private static void bindView(UidDetail detail, View target) {
+        final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
+        final TextView title = (TextView) target.findViewById(android.R.id.title);
+
+        if (detail != null) {
+            icon.setImageDrawable(detail.icon);
+            title.setText(detail.label);
+        } else {
+            icon.setImageDrawable(null);
+            title.setText(null);
+        }
+    }
+
+    private static final int MSG_LOAD = 1;
+
+    private class BackgroundHandler extends Handler {
+        BackgroundHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD: {
+                    while (true) {
+                        final int uid;
+                        synchronized (mQueue) {
+                            mLoading = false;
+                            if (mQueue.isEmpty()) {
+                                return;
+                            }
+                            uid = mQueue.removeFirst();
+                            mLoadingUid = uid;
+                            mLoading = true;
+                            mLoads++;
+                        }
+                        final UidDetail detail = mProvider.getUidDetail(uid, true);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver(uid, detail);
+                            }
+                        });
+                    }
+                }
+            }
+        }
+    }
+}
@@ -17,10 +17,7 @@
 package com.android.settings.net;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
@@ -32,6 +29,7 @@ import android.util.SparseArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.net.UidResolver.UidInfo;
 import com.android.settings.users.UserUtils;
 
 /**
@@ -40,6 +38,7 @@ import com.android.settings.users.UserUtils;
  */
 public class UidDetailProvider {
     private final Context mContext;
+    private final UidResolver mResolver;
     private final SparseArray<UidDetail> mUidDetailCache;
 
     public static int buildKeyForUser(int userHandle) {
@@ -48,6 +47,7 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
+        mResolver = UidResolver.getInstance(mContext);
         mUidDetailCache = new SparseArray<UidDetail>();
     }
 
@@ -67,13 +67,25 @@ public class UidDetailProvider {
             detail = mUidDetailCache.get(uid);
         }
 
-        if (detail != null) {
+        // Details of application UIDs are only good while the resolver still
+        // holds the information they were built from.
+        if (detail != null && (detail.source == null
+                || detail.source == mResolver.peek(uid))) {
             return detail;
-        } else if (!blocking) {
+        }
+
+        UidInfo info = null;
+        if (!isSpecialUid(uid)) {
+            info = blocking ? mResolver.resolve(uid) : mResolver.peek(uid);
+        }
+        if (info == null && !blocking) {
             return null;
         }
 
-        detail = buildUidDetail(uid);
+        detail = buildUidDetail(uid, info, blocking);
+        if (detail == null) {
+            return null;
+        }
 
         synchronized (mUidDetailCache) {
             mUidDetailCache.put(uid, detail);
@@ -82,16 +94,23 @@ public class UidDetailProvider {
         return detail;
     }
 
+    private static boolean isSpecialUid(int uid) {
+        return uid == android.os.Process.SYSTEM_UID || uid == TrafficStats.UID_REMOVED
+                || uid == TrafficStats.UID_TETHERING || uid <= -2000;
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
-     * lookup is finished.
+     * lookup is finished.  The package information of application UIDs
+     * comes from the shared {@link UidResolver}.  When not blocking, returns
+     * null instead of decoding an icon that is not cached or asking
+     * packagemanager for a name.
      */
-    private UidDetail buildUidDetail(int uid) {
+    private UidDetail buildUidDetail(int uid, UidInfo info, boolean blocking) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
         final UidDetail detail = new UidDetail();
-        detail.label = pm.getNameForUid(uid);
         detail.icon = pm.getDefaultActivityIcon();
 
         // handle special case labels
@@ -118,40 +137,43 @@ public class UidDetailProvider {
         if (uid <= -2000) {
             final int userHandle = (-uid) - 2000;
             final UserManager um = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
-            final UserInfo info = um.getUserInfo(userHandle);
-            if (info != null) {
-                detail.label = res.getString(R.string.running_process_item_user_label, info.name);
-                detail.icon = UserUtils.getUserIcon(mContext, um, info, res);
+            final UserInfo userInfo = um.getUserInfo(userHandle);
+            if (userInfo != null) {
+                detail.label = res.getString(R.string.running_process_item_user_label,
+                        userInfo.name);
+                detail.icon = UserUtils.getUserIcon(mContext, um, userInfo, res);
                 return detail;
             }
         }
 
         // otherwise fall back to using packagemanager labels
-        final String[] packageNames = pm.getPackagesForUid(uid);
-        final int length = packageNames != null ? packageNames.length : 0;
-        try {
-            if (length == 1) {
-                final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
-                detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
-            } else if (length > 1) {
-                detail.detailLabels = new CharSequence[length];
-                for (int i = 0; i < length; i++) {
-                    final String packageName = packageNames[i];
-                    final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-                    final ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
-
-                    detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
-                    if (packageInfo.sharedUserLabel != 0) {
-                        detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
-                                packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
-                    }
-                }
+        final int length = info != null && info.packages != null ? info.packages.length : 0;
+        detail.source = info;
+        if (length > 0) {
+            // For shared UIDs without a label of their own, this is the icon
+            // of the first package that has one.
+            detail.icon = blocking ? mResolver.loadIcon(info) : mResolver.peekIcon(info);
+            if (detail.icon == null) {
+                return null;
+            }
+        }
+        if (length == 1) {
+            detail.label = info.labels[0];
+        } else if (length > 1) {
+            detail.detailLabels = info.labels.clone();
+            if (info.sharedLabel != null) {
+                detail.label = info.sharedLabel.toString();
             }
-        } catch (NameNotFoundException e) {
         }
 
+        if (TextUtils.isEmpty(detail.label)) {
+            // Asking packagemanager for a name is a binder call, so leave it
+            // to the blocking lookup.
+            if (!blocking) {
+                return null;
+            }
+            detail.label = pm.getNameForUid(uid);
+        }
         if (TextUtils.isEmpty(detail.label)) {
             detail.label = Integer.toString(uid);
         }
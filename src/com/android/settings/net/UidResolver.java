@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.settings.drawable.AppIconCache;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide resolution of UIDs to the packages sharing them, their
+ * labels and the package whose icon represents them.  Shared by the data
+ * usage, battery and running process screens so that moving between them
+ * does not repeat the package manager lookups.
+ *
+ * <p>Results are kept in a bounded cache that is invalidated when packages
+ * are added, removed or changed.  Concurrent requests for the same UID share
+ * a single lookup, and asynchronous requests are resolved in batches on a
+ * background thread.
+ */
+public class UidResolver {
+    static final String TAG = "UidResolver";
+    static final boolean DEBUG = false;
+
+    private static final int MAX_CACHED_UIDS = 512;
+
+    /**
+     * Everything the package manager knows about a UID.  Immutable once
+     * published.
+     */
+    public static class UidInfo {
+        public final int uid;
+        /** Packages sharing the UID, or null if there are none. */
+        public final String[] packages;
+        /** Per package; an entry is null if the package could not be found. */
+        public final ApplicationInfo[] infos;
+        public final CharSequence[] labels;
+        /** Official name of a shared UID, or null. */
+        public final CharSequence sharedLabel;
+        /** Index of the package defining {@link #sharedLabel}, or -1. */
+        public final int sharedLabelIndex;
+        /** Index of the package whose icon stands for the UID, or -1. */
+        public final int iconIndex;
+
+        UidInfo(int uid, String[] packages, ApplicationInfo[] infos, CharSequence[] labels,
+                CharSequence sharedLabel, int sharedLabelIndex, int iconIndex) {
+            this.uid = uid;
+            this.packages = packages;
+            this.infos = infos;
+            this.labels = labels;
+            this.sharedLabel = sharedLabel;
+            this.sharedLabelIndex = sharedLabelIndex;
+            this.iconIndex = iconIndex;
+        }
+
+        public int indexOf(String packageName) {
+            if (packages != null) {
+                for (int i=0; i<packages.length; i++) {
+                    if (packages[i].equals(packageName)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Package whose icon stands for the UID, or null if none has one.
+         */
+        public String getIconPackage() {
+            return iconIndex >= 0 ? packages[iconIndex] : null;
+        }
+    }
+
+    /**
+     * Notified on the main thread when an asynchronous request completed.
+     */
+    public interface Listener {
+        public void onUidResolved(UidInfo info);
+    }
+
+    private static final class Pending {
+        final int generation;
+        final ArrayList<Listener> listeners = new ArrayList<Listener>();
+        UidInfo result;
+        boolean done;
+
+        Pending(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static UidResolver sInstance;
+
+    private final PackageManager mPm;
+    private final AppIconCache mIconCache;
+    private final Handler mMainHandler;
+
+    // Synchronize on 'this' for the following.
+    private final LruCache<Integer, UidInfo> mCache =
+            new LruCache<Integer, UidInfo>(MAX_CACHED_UIDS);
+    private final SparseArray<Pending> mPending = new SparseArray<Pending>();
+    private final ArrayList<Integer> mQueue = new ArrayList<Integer>();
+    private int mGeneration;
+    private Handler mBackgroundHandler;
+
+    public static synchronized UidResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UidResolver(Context context) {
+        mPm = context.getPackageManager();
+        mIconCache = AppIconCache.getInstance(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter(
+                Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid == -1) {
+                invalidateAll();
+            } else {
+                invalidate(uid);
+            }
+        }
+    };
+
+    /**
+     * Returns the cached information for the UID, or null if it has not been
+     * resolved yet.
+     */
+    public synchronized UidInfo peek(int uid) {
+        return mCache.get(uid);
+    }
+
+    /**
+     * Returns the information for the UID, resolving it on the calling
+     * thread if needed.  If the UID is already being resolved, waits for
+     * that lookup instead of starting another.  Must not be called on the
+     * main thread.
+     */
+    public UidInfo resolve(int uid) {
+        final Pending inFlight;
+        final Pending pending;
+        synchronized (this) {
+            final UidInfo cached = mCache.get(uid);
+            if (cached != null) {
+                return cached;
+            }
+            inFlight = mPending.get(uid);
+            if (inFlight == null) {
+                pending = new Pending(mGeneration);
+                mPending.put(uid, pending);
+            } else {
+                pending = null;
+            }
+        }
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+        final UidInfo info = load(uid);
+        final ArrayList<Listener> listeners = complete(uid, pending, info);
+        if (!listeners.isEmpty()) {
+            dispatch(listeners, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the cached information for the UID if there is any.
+     * Otherwise queues it for resolution and returns null; the listener is
+     * then called on the main thread once it is resolved.
+     */
+    public UidInfo request(int uid, Listener listener) {
+        synchronized (this) {
+            final UidInfo cached = mCache.get(uid);
+            if (cached != null) {
+                return cached;
+            }
+            Pending pending = mPending.get(uid);
+            if (pending == null) {
+                pending = new Pending(mGeneration);
+                mPending.put(uid, pending);
+                mQueue.add(uid);
+                if (mBackgroundHandler == null) {
+                    final HandlerThread thread = new HandlerThread(TAG,
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    thread.start();
+                    mBackgroundHandler = new BackgroundHandler(thread.getLooper());
+                }
+                if (!mBackgroundHandler.hasMessages(MSG_RESOLVE_QUEUED)) {
+                    mBackgroundHandler.sendEmptyMessage(MSG_RESOLVE_QUEUED);
+                }
+            }
+            if (listener != null) {
+                pending.listeners.add(listener);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops a listener that is no longer interested in its request.  The
+     * lookup itself still completes and is cached.
+     */
+    public synchronized void cancel(int uid, Listener listener) {
+        final Pending pending = mPending.get(uid);
+        if (pending != null) {
+            pending.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the icon standing for the resolved UID, or the default
+     * activity icon if its packages have none.
+     */
+    public Drawable loadIcon(UidInfo info) {
+        if (info.iconIndex >= 0) {
+            return mIconCache.getIcon(info.infos[info.iconIndex], mPm);
+        }
+        return mPm.getDefaultActivityIcon();
+    }
+
+    /**
+     * Like {@link #loadIcon}, but returns null instead of loading an icon
+     * that is not cached, so it can be used on the main thread.
+     */
+    public Drawable peekIcon(UidInfo info) {
+        if (info.iconIndex >= 0) {
+            return mIconCache.peekIcon(info.infos[info.iconIndex]);
+        }
+        return mPm.getDefaultActivityIcon();
+    }
+
+    public synchronized void invalidate(int uid) {
+        if (DEBUG) Log.i(TAG, "Invalidating " + uid);
+        mCache.remove(uid);
+        mGeneration++;
+    }
+
+    public synchronized void invalidateAll() {
+        if (DEBUG) Log.i(TAG, "Invalidating all");
+        mCache.evictAll();
+        mGeneration++;
+    }
+
+    private UidInfo await(Pending pending) {
+        boolean interrupted = false;
+        synchronized (pending) {
+            while (!pending.done) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return pending.result;
+    }
+
+    /**
+     * Publishes the result of a lookup, caching it unless packages changed
+     * while it was running, and wakes up any threads waiting for it.
+     * Returns the listeners to notify.
+     */
+    private ArrayList<Listener> complete(int uid, Pending pending, UidInfo info) {
+        final ArrayList<Listener> listeners;
+        synchronized (this) {
+            if (pending.generation == mGeneration) {
+                mCache.put(uid, info);
+            }
+            mPending.remove(uid);
+            listeners = new ArrayList<Listener>(pending.listeners);
+        }
+        synchronized (pending) {
+            pending.result = info;
+            pending.done = true;
+            pending.notifyAll();
+        }
+        return listeners;
+    }
+
+    private void dispatch(final ArrayList<Listener> listeners, final UidInfo info) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i=0; i<listeners.size(); i++) {
+                    listeners.get(i).onUidResolved(info);
+                }
+            }
+        });
+    }
+
+    private UidInfo load(int uid) {
+        final String[] packages = mPm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new UidInfo(uid, null, null, null, null, -1, -1);
+        }
+        final int length = packages.length;
+        final ApplicationInfo[] infos = new ApplicationInfo[length];
+        final CharSequence[] labels = new CharSequence[length];
+        CharSequence sharedLabel = null;
+        int sharedLabelIndex = -1;
+        int iconIndex = -1;
+        for (int i=0; i<length; i++) {
+            final String packageName = packages[i];
+            try {
+                final ApplicationInfo ai = mPm.getApplicationInfo(packageName,
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
+                infos[i] = ai;
+                labels[i] = ai.loadLabel(mPm).toString();
+                if (iconIndex < 0 && ai.icon != 0) {
+                    iconIndex = i;
+                }
+                if (length > 1 && sharedLabel == null) {
+                    final PackageInfo pi = mPm.getPackageInfo(packageName, 0);
+                    if (pi.sharedUserLabel != 0) {
+                        sharedLabel = mPm.getText(packageName, pi.sharedUserLabel, ai);
+                        if (sharedLabel != null) {
+                            sharedLabelIndex = i;
+                        }
+                    }
+                }
+            } catch (NameNotFoundException e) {
+                labels[i] = packageName;
+            }
+        }
+        if (sharedLabelIndex >= 0 && infos[sharedLabelIndex].icon != 0) {
+            iconIndex = sharedLabelIndex;
+        }
+        final UidInfo info = new UidInfo(uid, packages, infos, labels, sharedLabel,
+                sharedLabelIndex, iconIndex);
+        if (iconIndex >= 0) {
+            // Warm the icon cache while we are off the main thread anyway.
+            loadIcon(info);
+        }
+        return info;
+    }
+
+    private static final int MSG_RESOLVE_QUEUED = 1;
+
+    private class BackgroundHandler extends Handler {
+        BackgroundHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_RESOLVE_QUEUED: {
+                    final Integer[] uids;
+                    synchronized (UidResolver.this) {
+                        uids = mQueue.toArray(new Integer[mQueue.size()]);
+                        mQueue.clear();
+                    }
+                    if (DEBUG) Log.i(TAG, "Resolving batch of " + uids.length);
+                    final ArrayList<Runnable> results = new ArrayList<Runnable>();
+                    for (int i=0; i<uids.length; i++) {
+                        final int uid = uids[i];
+                        final Pending pending;
+                        synchronized (UidResolver.this) {
+                            pending = mPending.get(uid);
+                        }
+                        if (pending == null) {
+                            continue;
+                        }
+                        final UidInfo info = load(uid);
+                        final ArrayList<Listener> listeners = complete(uid, pending, info);
+                        if (!listeners.isEmpty()) {
+                            results.add(new Runnable() {
+                                @Override
+                                public void run() {
+                                    for (int j=0; j<listeners.size(); j++) {
+                                        listeners.get(j).onUidResolved(info);
+                                    }
+                                }
+                            });
+                        }
+                    }
+                    if (!results.isEmpty()) {
+                        // One pass on the main thread for the whole batch.
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (int i=0; i<results.size(); i++) {
+                                    results.get(i).run();
+                                }
+                            }
+                        });
+                    }
+                } break;
+            }
+        }
+    }
+}
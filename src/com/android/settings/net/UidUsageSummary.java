@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * Network usage collapsed into the items shown in the data usage list,
+ * sorted by total usage descending.  Built in the background from a
+ * {@link NetworkStats} summary so that the list only has to copy it.
+ */
+public class UidUsageSummary {
+    /** Number of items. */
+    public final int size;
+    /** Per item: the UID, or collapse key for other users and the system. */
+    public final int[] keys;
+    /** Per item: rx + tx bytes, or -1 for a restricted UID without usage. */
+    public final long[] totals;
+    public final boolean[] restricted;
+
+    // UIDs collapsed into item i are mUids[mUidStart[i]] until mUidStart[i + 1].
+    private final int[] mUidStart;
+    private final int[] mUids;
+
+    private UidUsageSummary(int size, int[] keys, long[] totals, boolean[] restricted,
+            int[] uidStart, int[] uids) {
+        this.size = size;
+        this.keys = keys;
+        this.totals = totals;
+        this.restricted = restricted;
+        mUidStart = uidStart;
+        mUids = uids;
+    }
+
+    public int getUidCount(int index) {
+        return mUidStart[index + 1] - mUidStart[index];
+    }
+
+    public int getUid(int index, int i) {
+        return mUids[mUidStart[index] + i];
+    }
+
+    public long getLargest() {
+        return size > 0 ? totals[0] : 0;
+    }
+
+    /**
+     * Returns true if both summaries describe the same list.
+     */
+    public boolean sameAs(UidUsageSummary other) {
+        return other != null && size == other.size && Arrays.equals(keys, other.keys)
+                && Arrays.equals(totals, other.totals)
+                && Arrays.equals(restricted, other.restricted)
+                && Arrays.equals(mUidStart, other.mUidStart) && Arrays.equals(mUids, other.mUids);
+    }
+
+    /**
+     * Collapses the UIDs of other users into one item per user and all
+     * non-application UIDs into the system, and splices in the restricted
+     * UIDs of the current user.
+     */
+    public static UidUsageSummary build(
+            NetworkStats stats, int[] restrictedUids, int currentUserId) {
+        final SparseIntArray keyIndex = new SparseIntArray();
+        final SparseIntArray uidIndex = new SparseIntArray();
+        int count = 0;
+        int[] keys = new int[16];
+        long[] totals = new long[16];
+        boolean[] restricted = new boolean[16];
+
+        NetworkStats.Entry entry = null;
+        final int statsSize = stats != null ? stats.size() : 0;
+        for (int i = 0; i < statsSize; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final int collapseKey;
+            if (UserHandle.isApp(uid)) {
+                if (UserHandle.getUserId(uid) == currentUserId) {
+                    collapseKey = uid;
+                } else {
+                    collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+            }
+
+            int index = keyIndex.get(collapseKey, -1);
+            if (index < 0) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    totals = Arrays.copyOf(totals, count * 2);
+                    restricted = Arrays.copyOf(restricted, count * 2);
+                }
+                index = count++;
+                keys[index] = collapseKey;
+                keyIndex.put(collapseKey, index);
+            }
+            uidIndex.put(uid, index);
+            totals[index] += entry.rxBytes + entry.txBytes;
+        }
+
+        for (int uid : restrictedUids) {
+            // Only splice in restricted state for current user
+            if (UserHandle.getUserId(uid) != currentUserId) continue;
+
+            int index = keyIndex.get(uid, -1);
+            if (index < 0) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    totals = Arrays.copyOf(totals, count * 2);
+                    restricted = Arrays.copyOf(restricted, count * 2);
+                }
+                index = count++;
+                keys[index] = uid;
+                totals[index] = -1;
+                keyIndex.put(uid, index);
+            }
+            restricted[index] = true;
+        }
+
+        // Order by total descending, keeping first-seen order for ties.
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        sortByTotal(order, totals);
+        final int[] rank = new int[count];
+        final int[] sortedKeys = new int[count];
+        final long[] sortedTotals = new long[count];
+        final boolean[] sortedRestricted = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            rank[order[i]] = i;
+            sortedKeys[i] = keys[order[i]];
+            sortedTotals[i] = totals[order[i]];
+            sortedRestricted[i] = restricted[order[i]];
+        }
+
+        // Bucket the collapsed UIDs by item.
+        final int[] uidStart = new int[count + 1];
+        for (int i = 0; i < uidIndex.size(); i++) {
+            uidStart[rank[uidIndex.valueAt(i)] + 1]++;
+        }
+        for (int i = 0; i < count; i++) {
+            uidStart[i + 1] += uidStart[i];
+        }
+        final int[] fill = Arrays.copyOf(uidStart, count);
+        final int[] uids = new int[uidIndex.size()];
+        for (int i = 0; i < uidIndex.size(); i++) {
+            uids[fill[rank[uidIndex.valueAt(i)]]++] = uidIndex.keyAt(i);
+        }
+
+        return new UidUsageSummary(count, sortedKeys, sortedTotals, sortedRestricted,
+                uidStart, uids);
+    }
+
+    /**
+     * Stable sort of item indexes by descending total.
+     */
+    private static void sortByTotal(int[] order, long[] totals) {
+        if (order.length < 2) {
+            return;
+        }
+        final int[] scratch = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int lo = 0; lo < order.length; lo += 2 * width) {
+                final int mid = Math.min(lo + width, order.length);
+                final int hi = Math.min(lo + 2 * width, order.length);
+                int a = lo, b = mid, out = lo;
+                while (a < mid && b < hi) {
+                    scratch[out++] = totals[order[b]] > totals[order[a]] ? order[b++] : order[a++];
+                }
+                while (a < mid) scratch[out++] = order[a++];
+                while (b < hi) scratch[out++] = order[b++];
+            }
+            System.arraycopy(scratch, 0, order, 0, order.length);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import android.view.View;
 
 import com.android.internal.util.Objects;
 import com.android.settings.R;
+import com.android.settings.net.NetworkStatsHistoryIndex;
 import com.android.settings.widget.ChartSweepView.OnSweepListener;
 
 import java.util.Arrays;
@@ -160,7 +161,11 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
-        mSeries.bindNetworkStats(stats);
+        bindNetworkStats(stats, null);
+    }
+
+    public void bindNetworkStats(NetworkStatsHistory stats, NetworkStatsHistoryIndex index) {
+        mSeries.bindNetworkStats(stats, index);
         mHistory = stats;
         updateVertAxisBounds(null);
         updateEstimateVisible();
@@ -169,7 +174,12 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindDetailNetworkStats(NetworkStatsHistory stats) {
-        mDetailSeries.bindNetworkStats(stats);
+        bindDetailNetworkStats(stats, null);
+    }
+
+    public void bindDetailNetworkStats(
+            NetworkStatsHistory stats, NetworkStatsHistoryIndex index) {
+        mDetailSeries.bindNetworkStats(stats, index);
         mDetailSeries.setVisibility(stats != null ? View.VISIBLE : View.GONE);
         if (mHistory != null) {
             mDetailSeries.setEndTime(mHistory.getEnd());
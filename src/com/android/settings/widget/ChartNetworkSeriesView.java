@@ -35,6 +35,7 @@ import android.view.View;
 
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
+import com.android.settings.net.NetworkStatsHistoryIndex;
 
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
@@ -75,6 +76,18 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /** Running totals of {@link #mStats}, built once per bind. */
+    private NetworkStatsHistoryIndex mIndex;
+
+    /**
+     * Series sampled once per pixel column, independent of the vertical
+     * axis. Only rebuilt when data, horizontal range or width change.
+     */
+    private float[] mColumnX = new float[0];
+    private long[] mColumnTotal = new long[0];
+    private int mColumnCount;
+    private boolean mColumnsValid = false;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -135,16 +148,36 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        bindNetworkStats(stats, new NetworkStatsHistoryIndex(stats));
+    }
+
+    /**
+     * Bind the given stats along with the index already built for them,
+     * typically by the loader, instead of building another one here.
+     */
+    public void bindNetworkStats(NetworkStatsHistory stats, NetworkStatsHistoryIndex index) {
         mStats = stats;
+        mIndex = index != null ? index : new NetworkStatsHistoryIndex(stats);
+        mColumnsValid = false;
         invalidatePath();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
+        if (mStart != start || mEnd != end) {
+            mColumnsValid = false;
+        }
         mStart = start;
         mEnd = end;
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mColumnsValid = false;
+        invalidatePath();
+    }
+
     /**
      * Set the range to paint with {@link #mPaintFill}, leaving the remaining
      * area to be painted with {@link #mPaintFillSecondary}.
@@ -161,9 +194,64 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Sample the bound data at every pixel column, in bytes counted from the
+     * first bucket on screen. Since the running total only grows, the first
+     * and last sample of a column are its minimum and maximum, so no detail
+     * is lost however many buckets fall into one column.
+     */
+    private void generateColumns() {
+        mColumnsValid = true;
+        mColumnCount = 0;
+
+        final int width = getWidth();
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        final int limit = end + 1;
+
+        // count from the first bucket crossing the left edge
+        final long leftTime = mHoriz.convertToValue(0);
+        int first = start;
+        while (first < end
+                && mIndex.getBucketStart(first) + mIndex.getBucketDuration() < leftTime) {
+            first++;
+        }
+        final long base = mIndex.getTotalBefore(first);
+        final long lastTime = mIndex.getBucketStart(end) + mIndex.getBucketDuration();
+        final float lastX = mHoriz.convertToPoint(lastTime);
+
+        final int maxColumns = width + 3;
+        if (mColumnX.length < maxColumns) {
+            mColumnX = new float[maxColumns];
+            mColumnTotal = new long[maxColumns];
+        }
+
+        final int columns = (int) Math.min(width, Math.max(0, Math.ceil(lastX)));
+        for (int x = 0; x < columns; x++) {
+            final long time = mHoriz.convertToValue(x);
+            mColumnX[mColumnCount] = x;
+            mColumnTotal[mColumnCount] = Math.max(0, mIndex.getTotalBefore(time, limit) - base);
+            mColumnCount++;
+        }
+
+        // always finish at end of last bucket
+        final long total = mIndex.getTotalBefore(limit) - base;
+        mColumnX[mColumnCount] = lastX;
+        mColumnTotal[mColumnCount] = total;
+        mColumnCount++;
+
+        // when data falls short, extend to requested end time
+        if (lastTime < mEndTime) {
+            mColumnX[mColumnCount] = mHoriz.convertToPoint(mEndTime);
+            mColumnTotal[mColumnCount] = total;
+            mColumnCount++;
+        }
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * currently bound {@link NetworkStatsHistory} data. Only the vertical
+     * mapping is redone unless the sampled columns are stale.
      */
     private void generatePath() {
         if (LOGD) Log.d(TAG, "generatePath()");
@@ -179,63 +267,25 @@ public class ChartNetworkSeriesView extends View {
             return;
         }
 
+        if (!mColumnsValid) {
+            generateColumns();
+        }
+
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
         long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
-        }
-
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+        for (int i = 0; i < mColumnCount; i++) {
+            lastX = mColumnX[i];
+            lastY = mVert.convertToPoint(mColumnTotal[i]);
+            totalData = mColumnTotal[i];
 
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
@@ -258,13 +308,12 @@ public class ChartNetworkSeriesView extends View {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
-            final long now = System.currentTimeMillis();
-            final long bucketDuration = mStats.getBucketDuration();
+            final long lastTime = mHoriz.convertToValue(lastX);
+            final long bucketDuration = mIndex.getBucketDuration();
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
-            final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                    / entry.bucketDuration;
+            final long longWindow = mIndex.getTotal(lastTime - WEEK_IN_MILLIS * 2, lastTime)
+                    * bucketDuration / (WEEK_IN_MILLIS * 2);
 
             long futureTime = 0;
             while (lastX < width) {
@@ -272,9 +321,8 @@ public class ChartNetworkSeriesView extends View {
 
                 // short window is day average last week
                 final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
-                entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
-                final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                        / entry.bucketDuration;
+                final long shortWindow = mIndex.getTotal(lastWeekTime - DAY_IN_MILLIS,
+                        lastWeekTime) * bucketDuration / DAY_IN_MILLIS;
 
                 totalData += (longWindow * 7 + shortWindow * 3) / 10;
 
@@ -291,6 +339,9 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setEndTime(long endTime) {
+        if (mEndTime != endTime) {
+            mColumnsValid = false;
+        }
         mEndTime = endTime;
     }
 
@@ -307,8 +358,7 @@ public class ChartNetworkSeriesView extends View {
         final long maxVisible = mEstimateVisible ? mMaxEstimate : mMax;
         if (maxVisible <= 0 && mStats != null) {
             // haven't generated path yet; fall back to raw data
-            final NetworkStatsHistory.Entry entry = mStats.getValues(mStart, mEnd, null);
-            return entry.rxBytes + entry.txBytes;
+            return mIndex.getTotal(mStart, mEnd);
         } else {
             return maxVisible;
         }
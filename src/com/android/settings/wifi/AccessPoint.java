@@ -28,6 +28,7 @@ import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.ImageView;
 
@@ -72,6 +73,45 @@ class AccessPoint extends Preference {
     private WifiInfo mInfo;
     private DetailedState mState;
 
+    /**
+     * Orders access points by whether they are active, reachable and
+     * configured, then by signal level; lower goes first.  See
+     * {@link #updateRankKey()}.
+     */
+    private int mRankKey;
+    /** {@link #ssid} case folded as by {@link String#compareToIgnoreCase}. */
+    private String mFoldedSsid;
+    /** Set when {@link #mRankKey} changes. */
+    private boolean mRankChanged;
+
+    /** Parsed capabilities of recent scan results, by capabilities string. */
+    private static final LruCache<String, Capabilities> sCapabilities =
+            new LruCache<String, Capabilities>(64);
+
+    /** What a scan result capabilities string says about its network. */
+    static class Capabilities {
+        final int security;
+        final PskType pskType;
+        final boolean wpsAvailable;
+        final boolean adhoc;
+
+        Capabilities(String capabilities) {
+            security = getSecurity(capabilities);
+            pskType = security == SECURITY_PSK ? getPskType(capabilities) : PskType.UNKNOWN;
+            wpsAvailable = security != SECURITY_EAP && capabilities.contains("WPS");
+            adhoc = capabilities.contains("[IBSS]");
+        }
+    }
+
+    static Capabilities getCapabilities(ScanResult result) {
+        Capabilities capabilities = sCapabilities.get(result.capabilities);
+        if (capabilities == null) {
+            capabilities = new Capabilities(result.capabilities);
+            sCapabilities.put(result.capabilities, capabilities);
+        }
+        return capabilities;
+    }
+
     static int getSecurity(WifiConfiguration config) {
         if (config.allowedKeyManagement.get(KeyMgmt.WPA_PSK)) {
             return SECURITY_PSK;
@@ -83,17 +123,34 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
-        if (result.capabilities.contains("WEP")) {
+    private static int getSecurity(String capabilities) {
+        if (capabilities.contains("WEP")) {
             return SECURITY_WEP;
-        } else if (result.capabilities.contains("PSK")) {
+        } else if (capabilities.contains("PSK")) {
             return SECURITY_PSK;
-        } else if (result.capabilities.contains("EAP")) {
+        } else if (capabilities.contains("EAP")) {
             return SECURITY_EAP;
         }
         return SECURITY_NONE;
     }
 
+    /**
+     * Returns the key identifying the network of a configuration, which is
+     * the same as that of the scan results of the network.
+     */
+    static String getKey(WifiConfiguration config) {
+        return getKey(config.SSID == null ? "" : removeDoubleQuotes(config.SSID),
+                getSecurity(config));
+    }
+
+    static String getKey(ScanResult result) {
+        return getKey(result.SSID, getCapabilities(result).security);
+    }
+
+    private static String getKey(String ssid, int security) {
+        return security + "," + ssid;
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -125,9 +182,9 @@ class AccessPoint extends Preference {
         }
     }
 
-    private static PskType getPskType(ScanResult result) {
-        boolean wpa = result.capabilities.contains("WPA-PSK");
-        boolean wpa2 = result.capabilities.contains("WPA2-PSK");
+    private static PskType getPskType(String capabilities) {
+        boolean wpa = capabilities.contains("WPA-PSK");
+        boolean wpa2 = capabilities.contains("WPA2-PSK");
         if (wpa2 && wpa) {
             return PskType.WPA_WPA2;
         } else if (wpa2) {
@@ -135,7 +192,7 @@ class AccessPoint extends Preference {
         } else if (wpa) {
             return PskType.WPA;
         } else {
-            Log.w(TAG, "Received abnormal flag string: " + result.capabilities);
+            Log.w(TAG, "Received abnormal flag string: " + capabilities);
             return PskType.UNKNOWN;
         }
     }
@@ -189,18 +246,47 @@ class AccessPoint extends Preference {
         networkId = config.networkId;
         mRssi = Integer.MAX_VALUE;
         mConfig = config;
+        mFoldedSsid = foldCase(ssid);
+        updateRankKey();
     }
 
     private void loadResult(ScanResult result) {
+        final Capabilities capabilities = getCapabilities(result);
         ssid = result.SSID;
         bssid = result.BSSID;
-        security = getSecurity(result);
-        wpsAvailable = security != SECURITY_EAP && result.capabilities.contains("WPS");
-        if (security == SECURITY_PSK)
-            pskType = getPskType(result);
+        security = capabilities.security;
+        wpsAvailable = capabilities.wpsAvailable;
+        pskType = capabilities.pskType;
         networkId = -1;
         mRssi = result.level;
         mScanResult = result;
+        mFoldedSsid = foldCase(ssid);
+        updateRankKey();
+    }
+
+    private static String foldCase(String string) {
+        final char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Recomputes {@link #mRankKey} after a change of connection, signal or
+     * configuration.
+     */
+    private void updateRankKey() {
+        int key = 0;
+        if (mInfo == null) key |= 1 << 4;
+        if (mRssi == Integer.MAX_VALUE) key |= 1 << 3;
+        if (networkId == WifiConfiguration.INVALID_NETWORK_ID) key |= 1 << 2;
+        // Strongest first
+        key |= 3 - Math.max(getLevel(), 0);
+        if (key != mRankKey) {
+            mRankKey = key;
+            mRankChanged = true;
+        }
     }
 
     @Override
@@ -224,27 +310,25 @@ class AccessPoint extends Preference {
             return 1;
         }
         AccessPoint other = (AccessPoint) preference;
-        // Active one goes first.
-        if (mInfo != null && other.mInfo == null) return -1;
-        if (mInfo == null && other.mInfo != null) return 1;
-
-        // Reachable one goes before unreachable one.
-        if (mRssi != Integer.MAX_VALUE && other.mRssi == Integer.MAX_VALUE) return -1;
-        if (mRssi == Integer.MAX_VALUE && other.mRssi != Integer.MAX_VALUE) return 1;
-
-        // Configured one goes before unconfigured one.
-        if (networkId != WifiConfiguration.INVALID_NETWORK_ID
-                && other.networkId == WifiConfiguration.INVALID_NETWORK_ID) return -1;
-        if (networkId == WifiConfiguration.INVALID_NETWORK_ID
-                && other.networkId != WifiConfiguration.INVALID_NETWORK_ID) return 1;
-
-        // Sort by signal strength.
-        int difference = WifiManager.compareSignalLevel(other.mRssi, mRssi);
+        // Active, reachable, configured and strong ones go first.
+        if (mRankKey != other.mRankKey) {
+            return mRankKey < other.mRankKey ? -1 : 1;
+        }
+        // Sort by ssid.
+        int difference = mFoldedSsid.compareTo(other.mFoldedSsid);
         if (difference != 0) {
             return difference;
         }
-        // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        // Only distinct networks may compare equal, since removing a
+        // preference from its group goes by equals().
+        difference = ssid.compareTo(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        if (security != other.security) {
+            return security < other.security ? -1 : 1;
+        }
+        return networkId < other.networkId ? -1 : (networkId == other.networkId ? 0 : 1);
     }
 
     @Override
@@ -263,23 +347,44 @@ class AccessPoint extends Preference {
         return result;
     }
 
-    boolean update(ScanResult result) {
-        if (ssid.equals(result.SSID) && security == getSecurity(result)) {
-            if (WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
-                int oldLevel = getLevel();
-                mRssi = result.level;
-                if (getLevel() != oldLevel) {
-                    notifyChanged();
-                }
+    /**
+     * Brings this access point up to date with the saved configuration of its
+     * network and the strongest scan result of it, either of which may be
+     * null.  Call {@link #update(WifiInfo, DetailedState)} afterwards.
+     */
+    void update(WifiConfiguration config, ScanResult result) {
+        final Capabilities capabilities = result != null ? getCapabilities(result) : null;
+        final int oldLevel = getLevel();
+
+        if (config != null) {
+            bssid = config.BSSID;
+            networkId = config.networkId;
+            mConfig = config;
+            mScanResult = null;
+        } else {
+            networkId = WifiConfiguration.INVALID_NETWORK_ID;
+            mConfig = null;
+            if (result != null) {
+                bssid = result.BSSID;
+                wpsAvailable = capabilities.wpsAvailable;
+                mScanResult = result;
             }
+        }
+        if (result != null) {
             // This flag only comes from scans, is not easily saved in config
             if (security == SECURITY_PSK) {
-                pskType = getPskType(result);
+                pskType = capabilities.pskType;
             }
-            refresh();
-            return true;
+            mRssi = result.level;
+        } else {
+            mRssi = Integer.MAX_VALUE;
+        }
+
+        updateRankKey();
+        if (getLevel() != oldLevel) {
+            notifyChanged();
         }
-        return false;
+        refresh();
     }
 
     void update(WifiInfo info, DetailedState state) {
@@ -297,11 +402,22 @@ class AccessPoint extends Preference {
             mState = null;
             refresh();
         }
+        updateRankKey();
         if (reorder) {
             notifyHierarchyChanged();
         }
     }
 
+    /**
+     * Returns whether this access point may have to move in a sorted list
+     * since the last call, and clears the flag.
+     */
+    boolean takeRankChanged() {
+        final boolean changed = mRankChanged;
+        mRankChanged = false;
+        return changed;
+    }
+
     int getLevel() {
         if (mRssi == Integer.MAX_VALUE) {
             return -1;
@@ -48,12 +48,14 @@ import android.net.wifi.WpsInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Gravity;
@@ -74,11 +76,13 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -110,6 +114,8 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     // Combo scans can take 5-6s to complete - set to 10s.
     private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
+    // Longest interval between scans that keep returning the same networks.
+    private static final int WIFI_RESCAN_MAX_INTERVAL_MS = 80 * 1000;
 
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
@@ -137,6 +143,21 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     private final AtomicBoolean mConnected = new AtomicBoolean(false);
 
+    /** Access points on screen, by {@link AccessPoint#getKey}. */
+    private HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+
+    private boolean mUpdatePending;
+    /** Set when scan results arrived since the last update. */
+    private boolean mScanResultsAvailable;
+    private final Choreographer.FrameCallback mUpdateFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mUpdatePending = false;
+            updateAccessPoints();
+        }
+    };
+
     private WifiDialog mDialog;
 
     private TextView mEmptyView;
@@ -439,6 +460,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mWifiEnabler.pause();
         }
         getActivity().unregisterReceiver(mReceiver);
+        cancelUpdateAccessPoints();
         mScanner.pause();
     }
 
@@ -606,6 +628,7 @@ public class WifiSettings extends RestrictedSettingsFragment
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen screen, Preference preference) {
         if (preference instanceof AccessPoint) {
+            mScanner.onUserInteraction();
             mSelectedAccessPoint = (AccessPoint) preference;
             /** Bypass dialog for unsecured, unsaved networks */
             if (mSelectedAccessPoint.security == AccessPoint.SECURITY_NONE &&
@@ -704,6 +727,8 @@ public class WifiSettings extends RestrictedSettingsFragment
      * the strength of network and the security for it.
      */
     private void updateAccessPoints() {
+        cancelUpdateAccessPoints();
+
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
 
@@ -715,19 +740,13 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
-                if(accessPoints.size() == 0) {
+                if (mergeAccessPoints() == 0) {
                     addMessagePreference(R.string.wifi_empty_list_wifi_on);
                 }
-                for (AccessPoint accessPoint : accessPoints) {
-                    getPreferenceScreen().addPreference(accessPoint);
-                }
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                removeAllAccessPoints();
                 break;
 
             case WifiManager.WIFI_STATE_DISABLING:
@@ -757,74 +776,132 @@ public class WifiSettings extends RestrictedSettingsFragment
                 mEmptyView.append(charSeq);
             }
         }
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
-    /** Returns sorted list of access points */
-    private List<AccessPoint> constructAccessPoints() {
-        ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
-        /** Lookup table to more quickly update AccessPoints by only considering objects with the
-         * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
-        Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
+    private void removeAllAccessPoints() {
+        getPreferenceScreen().removeAll();
+        mAccessPoints.clear();
+    }
 
-        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
-        if (configs != null) {
-            for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
-                accessPoint.update(mLastInfo, mLastState);
-                accessPoints.add(accessPoint);
-                apMap.put(accessPoint.ssid, accessPoint);
-            }
+    /**
+     * Brings the access points on screen up to date with the configured
+     * networks and the latest scan results.  Access points are kept across
+     * updates, one per network as identified by {@link AccessPoint#getKey},
+     * and only those that are new or whose rank changed are (re)inserted.
+     * Returns the number of access points shown.
+     */
+    private int mergeAccessPoints() {
+        final PreferenceScreen screen = getPreferenceScreen();
+
+        // Strongest scan result of each network
+        final HashMap<String, ScanResult> results = new HashMap<String, ScanResult>();
+        final List<ScanResult> scanResults = mWifiManager.getScanResults();
+        if (mScanResultsAvailable) {
+            mScanResultsAvailable = false;
+            mScanner.onScanResults(scanResults);
         }
-
-        final List<ScanResult> results = mWifiManager.getScanResults();
-        if (results != null) {
-            for (ScanResult result : results) {
+        if (scanResults != null) {
+            for (ScanResult result : scanResults) {
                 // Ignore hidden and ad-hoc networks.
                 if (result.SSID == null || result.SSID.length() == 0 ||
-                        result.capabilities.contains("[IBSS]")) {
+                        AccessPoint.getCapabilities(result).adhoc) {
                     continue;
                 }
+                final String key = AccessPoint.getKey(result);
+                final ScanResult strongest = results.get(key);
+                if (strongest == null
+                        || WifiManager.compareSignalLevel(result.level, strongest.level) > 0) {
+                    results.put(key, result);
+                }
+            }
+        }
 
-                boolean found = false;
-                for (AccessPoint accessPoint : apMap.getAll(result.SSID)) {
-                    if (accessPoint.update(result))
-                        found = true;
+        // Access points that are new or have to move.  Those that move are
+        // taken out right away, so the ones left on screen stay sorted for
+        // the insertions below.
+        final HashMap<String, AccessPoint> accessPoints = new HashMap<String, AccessPoint>();
+        final ArrayList<AccessPoint> inserted = new ArrayList<AccessPoint>();
+
+        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
+        if (configs != null) {
+            for (WifiConfiguration config : configs) {
+                final String networkKey = AccessPoint.getKey(config);
+                String key = networkKey;
+                if (accessPoints.containsKey(key)) {
+                    // Another configuration of the same network
+                    key = networkKey + "," + config.networkId;
                 }
-                if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(getActivity(), result);
-                    accessPoints.add(accessPoint);
-                    apMap.put(accessPoint.ssid, accessPoint);
+                AccessPoint accessPoint = mAccessPoints.remove(key);
+                final boolean added = accessPoint == null;
+                if (added) {
+                    accessPoint = new AccessPoint(getActivity(), config);
                 }
+                accessPoint.update(config, results.get(networkKey));
+                accessPoint.update(mLastInfo, mLastState);
+                if (accessPoint.takeRankChanged() || added) {
+                    if (!added) screen.removePreference(accessPoint);
+                    inserted.add(accessPoint);
+                }
+                accessPoints.put(key, accessPoint);
+            }
+        }
+
+        for (Map.Entry<String, ScanResult> entry : results.entrySet()) {
+            final String key = entry.getKey();
+            if (accessPoints.containsKey(key)) {
+                continue;
+            }
+            AccessPoint accessPoint = mAccessPoints.remove(key);
+            final boolean added = accessPoint == null;
+            if (added) {
+                accessPoint = new AccessPoint(getActivity(), entry.getValue());
             }
+            accessPoint.update(null, entry.getValue());
+            // Drops the connection state of a network that was just forgotten
+            accessPoint.update(mLastInfo, mLastState);
+            if (accessPoint.takeRankChanged() || added) {
+                if (!added) screen.removePreference(accessPoint);
+                inserted.add(accessPoint);
+            }
+            accessPoints.put(key, accessPoint);
+        }
+
+        // Whatever is left is gone
+        for (AccessPoint accessPoint : mAccessPoints.values()) {
+            screen.removePreference(accessPoint);
+        }
+
+        // Pre-sort to speed preference insertion
+        Collections.sort(inserted);
+        for (AccessPoint accessPoint : inserted) {
+            screen.addPreference(accessPoint);
         }
 
-        // Pre-sort accessPoints to speed preference insertion
-        Collections.sort(accessPoints);
-        return accessPoints;
+        mAccessPoints = accessPoints;
+        return accessPoints.size();
     }
 
-    /** A restricted multimap for use in constructAccessPoints */
-    private class Multimap<K,V> {
-        private final HashMap<K,List<V>> store = new HashMap<K,List<V>>();
-        /** retrieve a non-null list of values with key K */
-        List<V> getAll(K key) {
-            List<V> values = store.get(key);
-            return values != null ? values : Collections.<V>emptyList();
+    /**
+     * Updates the access points once on the next frame, for all the events
+     * received until then.
+     */
+    private void scheduleUpdateAccessPoints() {
+        if (!mUpdatePending) {
+            mUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(mUpdateFrameCallback);
         }
+    }
 
-        void put(K key, V val) {
-            List<V> curVals = store.get(key);
-            if (curVals == null) {
-                curVals = new ArrayList<V>(3);
-                store.put(key, curVals);
-            }
-            curVals.add(val);
+    private void cancelUpdateAccessPoints() {
+        if (mUpdatePending) {
+            mUpdatePending = false;
+            Choreographer.getInstance().removeFrameCallback(mUpdateFrameCallback);
         }
     }
 
@@ -833,10 +910,12 @@ public class WifiSettings extends RestrictedSettingsFragment
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mScanResultsAvailable = true;
+            scheduleUpdateAccessPoints();
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
-                updateAccessPoints();
+                scheduleUpdateAccessPoints();
         } else if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(action)) {
             //Ignore supplicant state changes when network is connected
             //TODO: we should deprecate SUPPLICANT_STATE_CHANGED_ACTION and
@@ -859,7 +938,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                     WifiManager.EXTRA_NETWORK_INFO);
             mConnected.set(info.isConnected());
             changeNextButtonState(info.isConnected());
-            updateAccessPoints();
+            scheduleUpdateAccessPoints();
             updateConnectionState(info.getDetailedState());
             if (mAutoFinishOnConnection && info.isConnected()) {
                 Activity activity = getActivity();
@@ -870,6 +949,8 @@ public class WifiSettings extends RestrictedSettingsFragment
                 return;
             }
         } else if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
+            mScanner.onConnectedRssi(intent.getIntExtra(WifiManager.EXTRA_NEW_RSSI,
+                    Integer.MAX_VALUE));
             updateConnectionState(null);
         }
     }
@@ -927,8 +1008,25 @@ public class WifiSettings extends RestrictedSettingsFragment
         mScanner.pause();
     }
 
+    /**
+     * Scans periodically while resumed.  The interval doubles, up to
+     * {@link #WIFI_RESCAN_MAX_INTERVAL_MS}, while scans keep finding the same
+     * networks at the same signal levels, and goes back to
+     * {@link #WIFI_RESCAN_INTERVAL_MS} when they change, when the user
+     * interacts with the list, or when the signal of the connected network
+     * drops.
+     */
     private class Scanner extends Handler {
         private int mRetry = 0;
+        private int mInterval = WIFI_RESCAN_INTERVAL_MS;
+        private long mLastScanTime;
+        /** Hash of the networks and signal levels found by the last scan. */
+        private int mLastSignature;
+        private int mConnectedLevel = -1;
+
+        // For battery testing through dumpsys; kept across pause().
+        private int mScanCount;
+        private int mBackoffCount;
 
         void resume() {
             if (!hasMessages(0)) {
@@ -937,19 +1035,80 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         void forceScan() {
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
             removeMessages(0);
             sendEmptyMessage(0);
         }
 
         void pause() {
             mRetry = 0;
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
+            mConnectedLevel = -1;
             removeMessages(0);
         }
 
+        void onUserInteraction() {
+            speedUp();
+        }
+
+        void onConnectedRssi(int rssi) {
+            final int level = rssi != Integer.MAX_VALUE
+                    ? WifiManager.calculateSignalLevel(rssi, 4) : -1;
+            if (level < mConnectedLevel) {
+                speedUp();
+            }
+            mConnectedLevel = level;
+        }
+
+        void onScanResults(List<ScanResult> results) {
+            int signature = 0;
+            if (results != null) {
+                for (ScanResult result : results) {
+                    // Order independent
+                    signature += 31 * (result.BSSID != null ? result.BSSID.hashCode() : 0)
+                            + WifiManager.calculateSignalLevel(result.level, 4);
+                }
+                signature = 31 * signature + results.size();
+            }
+            if (signature != mLastSignature) {
+                mLastSignature = signature;
+                speedUp();
+            } else if (mInterval < WIFI_RESCAN_MAX_INTERVAL_MS) {
+                mInterval = Math.min(mInterval * 2, WIFI_RESCAN_MAX_INTERVAL_MS);
+                mBackoffCount++;
+                reschedule();
+            }
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "scans=" + mScanCount + " interval=" + mInterval
+                    + "ms backoffs=" + mBackoffCount);
+        }
+
+        private void speedUp() {
+            if (mInterval != WIFI_RESCAN_INTERVAL_MS) {
+                mInterval = WIFI_RESCAN_INTERVAL_MS;
+                reschedule();
+            }
+        }
+
+        /** Moves a pending scan to the current interval after the last one. */
+        private void reschedule() {
+            if (hasMessages(0)) {
+                removeMessages(0);
+                final long delay = mLastScanTime + mInterval - SystemClock.uptimeMillis();
+                sendEmptyMessageDelayed(0, Math.max(0, delay));
+            }
+        }
+
         @Override
         public void handleMessage(Message message) {
             if (mWifiManager.startScan()) {
                 mRetry = 0;
+                mScanCount++;
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "scan #" + mScanCount + ", next in " + mInterval + "ms");
+                }
             } else if (++mRetry >= 3) {
                 mRetry = 0;
                 Activity activity = getActivity();
@@ -959,10 +1118,17 @@ public class WifiSettings extends RestrictedSettingsFragment
                 }
                 return;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            mLastScanTime = SystemClock.uptimeMillis();
+            sendEmptyMessageDelayed(0, mInterval);
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mScanner.dump(prefix, writer);
+    }
+
     /**
      * Renames/replaces "Next" button when appropriate. "Next" button usually exists in
      * Wifi setup screens, not in usual wifi settings screen.
@@ -1040,7 +1206,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mScanner.resume();
         }
 
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
     /**
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Saves app entries to a snapshot and restores them, checking that labels,
+ * sizes and icons survive and that only changed icons are written again.
+ */
+@LargeTest
+public class AppEntrySnapshotTest extends AndroidTestCase {
+    private File mDir;
+    private ApplicationInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "AppEntrySnapshotTest");
+        deleteContents(mDir);
+        mDir.mkdirs();
+        mInfo = getContext().getApplicationInfo();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteContents(mDir);
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() {
+        final AppEntry entry = createEntry();
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
+        entries.add(entry);
+        new AppEntrySnapshot(getContext(), mDir).save(entries);
+
+        final AppEntrySnapshot snapshot = new AppEntrySnapshot(getContext(), mDir);
+        snapshot.load();
+        final AppEntry restored = new AppEntry(getContext(), mInfo, 2, snapshot);
+        assertEquals(entry.label, restored.label);
+        assertEquals(entry.size, restored.size);
+        assertEquals(entry.internalSize, restored.internalSize);
+        assertEquals(entry.externalSize, restored.externalSize);
+        assertEquals(entry.codeSize, restored.codeSize);
+        assertEquals(entry.dataSize, restored.dataSize);
+        assertEquals(entry.cacheSize, restored.cacheSize);
+        assertNotNull(restored.icon);
+
+        // Each record is only restored once.
+        assertFalse(snapshot.restore(new AppEntry(getContext(), mInfo, 3, null)));
+    }
+
+    public void testSizeChangeKeepsIcon() {
+        final AppEntrySnapshot snapshot = new AppEntrySnapshot(getContext(), mDir);
+        final AppEntry entry = createEntry();
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
+        entries.add(entry);
+        snapshot.save(entries);
+
+        final File iconFile = snapshot.getIconFile(mInfo.packageName);
+        assertTrue(iconFile.exists());
+        assertTrue(iconFile.setLastModified(0));
+
+        synchronized (entry) {
+            entry.size += 1000;
+        }
+        snapshot.save(entries);
+        assertEquals(0, iconFile.lastModified());
+
+        snapshot.load();
+        final AppEntry restored = new AppEntry(getContext(), mInfo, 2, snapshot);
+        assertEquals(entry.size, restored.size);
+        assertNotNull(restored.icon);
+    }
+
+    public void testRemovedPackageDropsIcon() {
+        final AppEntrySnapshot snapshot = new AppEntrySnapshot(getContext(), mDir);
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
+        entries.add(createEntry());
+        snapshot.save(entries);
+        final File iconFile = snapshot.getIconFile(mInfo.packageName);
+        assertTrue(iconFile.exists());
+
+        entries.clear();
+        snapshot.save(entries);
+        assertFalse(iconFile.exists());
+    }
+
+    private AppEntry createEntry() {
+        final AppEntry entry = new AppEntry(getContext(), mInfo, 1, null);
+        final PackageManager pm = getContext().getPackageManager();
+        synchronized (entry) {
+            entry.ensureIconLocked(getContext(), pm);
+            entry.size = 3000;
+            entry.internalSize = 2000;
+            entry.externalSize = 1000;
+            entry.codeSize = 1500;
+            entry.dataSize = 500;
+            entry.cacheSize = 250;
+        }
+        return entry;
+    }
+
+    private static void deleteContents(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            file.delete();
+        }
+    }
+}
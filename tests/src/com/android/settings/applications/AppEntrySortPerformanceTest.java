@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Compares sorting synthetic app entries by raw label against sorting them
+ * by their precomputed collation keys.
+ */
+@LargeTest
+public class AppEntrySortPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "AppEntrySortPerformanceTest";
+
+    private static final int ITERATIONS = 10;
+
+    public void testAlphaSort100() {
+        runSortBenchmark(100);
+    }
+
+    public void testAlphaSort500() {
+        runSortBenchmark(500);
+    }
+
+    public void testAlphaSort2000() {
+        runSortBenchmark(2000);
+    }
+
+    private void runSortBenchmark(int count) {
+        final ArrayList<AppEntry> entries = createEntries(count);
+        final Collator collator = Collator.getInstance();
+        final Comparator<AppEntry> rawComparator = new Comparator<AppEntry>() {
+            @Override
+            public int compare(AppEntry object1, AppEntry object2) {
+                return collator.compare(object1.label, object2.label);
+            }
+        };
+
+        final long rawTime = timeSort(entries, rawComparator);
+
+        final long keyStart = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<entries.size(); i++) {
+            entries.get(i).ensureLabelKey(collator);
+        }
+        final long keyTime = SystemClock.elapsedRealtimeNanos() - keyStart;
+        final long sortTime = timeSort(entries, ApplicationsState.ALPHA_COMPARATOR);
+
+        Log.i(TAG, count + " entries: raw compare " + (rawTime / 1000) + "us, keys "
+                + (keyTime / 1000) + "us + sort " + (sortTime / 1000) + "us");
+
+        // The key based order must agree with the collator.
+        for (int i=1; i<entries.size(); i++) {
+            assertTrue(collator.compare(entries.get(i-1).label, entries.get(i).label) <= 0);
+        }
+    }
+
+    private long timeSort(ArrayList<AppEntry> entries, Comparator<AppEntry> comparator) {
+        final Random random = new Random(0);
+        long total = 0;
+        for (int i=0; i<ITERATIONS; i++) {
+            Collections.shuffle(entries, random);
+            final long start = SystemClock.elapsedRealtimeNanos();
+            Collections.sort(entries, comparator);
+            total += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        return total / ITERATIONS;
+    }
+
+    private ArrayList<AppEntry> createEntries(int count) {
+        final Random random = new Random(count);
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>(count);
+        for (int i=0; i<count; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/data/app/" + info.packageName + ".apk";
+            info.enabled = true;
+            info.flags = ApplicationInfo.FLAG_INSTALLED;
+            final AppEntry entry = new AppEntry(getContext(), info, i, null);
+            entry.label = randomLabel(random);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static String randomLabel(Random random) {
+        final StringBuilder builder = new StringBuilder();
+        final int words = 1 + random.nextInt(3);
+        for (int w=0; w<words; w++) {
+            if (w > 0) {
+                builder.append(' ');
+            }
+            final int length = 3 + random.nextInt(8);
+            for (int c=0; c<length; c++) {
+                char ch = (char) ('a' + random.nextInt(26));
+                builder.append(c == 0 ? Character.toUpperCase(ch) : ch);
+            }
+        }
+        return builder.toString();
+    }
+}
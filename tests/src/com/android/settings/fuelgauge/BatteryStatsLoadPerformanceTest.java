@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.Settings;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the refresh behind the Power Usage screen: how long the main
+ * thread is blocked by {@link BatteryStatsHelper#refreshStats(boolean)},
+ * against how long it is blocked by the asynchronous refresh and how long
+ * until its callback runs.
+ */
+@LargeTest
+public class BatteryStatsLoadPerformanceTest extends ActivityInstrumentationTestCase2<Settings> {
+    private static final String TAG = "BatteryStatsLoadPerformanceTest";
+
+    private static final int ITERATIONS = 10;
+    private static final long CALLBACK_TIMEOUT = 30 * 1000;
+
+    private BatteryStatsHelper mHelper;
+
+    public BatteryStatsLoadPerformanceTest() {
+        super("com.android.settings", Settings.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new BatteryStatsHelper(getActivity(), null);
+        mHelper.create(null);
+    }
+
+    public void testStartupLatency() throws Exception {
+        // Warm up the binder, the parcel classes and the power profile.
+        refreshInline();
+
+        long inlineTime = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            inlineTime += refreshInline();
+        }
+        inlineTime /= ITERATIONS;
+
+        long blockedTime = 0;
+        long readyTime = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final CountDownLatch refreshed = new CountDownLatch(1);
+            final long[] blocked = new long[1];
+            final long start = SystemClock.elapsedRealtime();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mHelper.clearStats();
+                    final long callStart = SystemClock.elapsedRealtime();
+                    mHelper.refreshStats(false, new BatteryStatsHelper.RefreshCallback() {
+                        @Override
+                        public void onStatsRefreshed(List<BatterySipper> usageList) {
+                            refreshed.countDown();
+                        }
+                    });
+                    blocked[0] = SystemClock.elapsedRealtime() - callStart;
+                }
+            });
+            assertTrue(refreshed.await(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS));
+            readyTime += SystemClock.elapsedRealtime() - start;
+            blockedTime += blocked[0];
+        }
+
+        Log.i(TAG, "refreshStats blocks the main thread " + inlineTime
+                + "ms; asynchronous refreshStats blocks it " + (blockedTime / ITERATIONS)
+                + "ms, callback after " + (readyTime / ITERATIONS) + "ms");
+    }
+
+    /**
+     * Runs a synchronous refresh from scratch on the main thread.
+     *
+     * @return the time it blocked the main thread
+     */
+    private long refreshInline() {
+        final long[] blocked = new long[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mHelper.clearStats();
+                final long start = SystemClock.elapsedRealtime();
+                mHelper.refreshStats(false);
+                blocked[0] = SystemClock.elapsedRealtime() - start;
+            }
+        });
+        assertNotNull(mHelper.getStats());
+        return blocked[0];
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures time-to-chart of {@link ChartDataLoader} for app items made of
+ * a growing number of UIDs, fetching their histories serially and in
+ * parallel.  The stats service is faked with a fixed latency per call.
+ */
+@LargeTest
+public class ChartDataLoaderPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "ChartDataLoaderPerformanceTest";
+
+    private static final long CALL_LATENCY_MS = 5;
+    private static final long START = 1356998400000L;
+    private static final long BYTES_PER_HOUR = 1024;
+    private static final int HOURS = 24 * 30;
+
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testTimeToChart1() throws Exception {
+        runBenchmark(1);
+    }
+
+    public void testTimeToChart8() throws Exception {
+        runBenchmark(8);
+    }
+
+    public void testTimeToChart32() throws Exception {
+        runBenchmark(32);
+    }
+
+    private void runBenchmark(int uidCount) throws Exception {
+        final NetworkTemplate template = NetworkTemplate.buildTemplateWifiWildcard();
+        final FakeSession session = new FakeSession();
+        final AppItem app = new AppItem(10000);
+        for (int i = 0; i < uidCount; i++) {
+            app.addUid(10000 + i);
+        }
+        final int fields = FIELD_RX_BYTES | FIELD_TX_BYTES;
+
+        long start = SystemClock.elapsedRealtime();
+        final ChartData serial = ChartDataLoader.loadChartData(
+                session, template, app, fields, null);
+        final long serialTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        final ChartData parallel = ChartDataLoader.loadChartData(
+                session, template, app, fields, mExecutor);
+        final long parallelTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, uidCount + " uids: serial " + serialTime + "ms, parallel "
+                + parallelTime + "ms");
+
+        // Both strategies must chart the same totals.
+        final long expected = uidCount * 2 * HOURS * BYTES_PER_HOUR * 2;
+        assertEquals(expected, totalBytes(serial.detail));
+        assertEquals(expected, totalBytes(parallel.detail));
+        assertEquals(totalBytes(serial.detailDefault), totalBytes(parallel.detailDefault));
+    }
+
+    private static long totalBytes(NetworkStatsHistory history) {
+        final NetworkStatsHistory.Entry entry = history.getValues(
+                Long.MIN_VALUE, Long.MAX_VALUE, null);
+        return entry.rxBytes + entry.txBytes;
+    }
+
+    private static NetworkStatsHistory buildHistory() {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, HOURS);
+        for (int i = 0; i < HOURS; i++) {
+            final long bucketStart = START + i * HOUR_IN_MILLIS;
+            history.recordData(bucketStart, bucketStart + HOUR_IN_MILLIS,
+                    new NetworkStats.Entry(BYTES_PER_HOUR, 1, BYTES_PER_HOUR, 1, 0));
+        }
+        return history;
+    }
+
+    /**
+     * Stats session that answers every history request after a fixed delay,
+     * standing in for a binder round trip.
+     */
+    private static class FakeSession extends INetworkStatsSession.Stub {
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            SystemClock.sleep(CALL_LATENCY_MS);
+            return buildHistory();
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(
+                NetworkTemplate template, long start, long end, boolean includeTags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(
+                NetworkTemplate template, int uid, int set, int tag, int fields) {
+            SystemClock.sleep(CALL_LATENCY_MS);
+            return buildHistory();
+        }
+
+        @Override
+        public void close() throws RemoteException {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Measures path generation of {@link ChartNetworkSeriesView} over a year of
+ * hourly buckets, for a full rebuild, a vertical axis change and a sweep
+ * move.
+ */
+@LargeTest
+public class ChartNetworkSeriesViewPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "ChartNetworkSeriesViewPerformanceTest";
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 400;
+    private static final int HOURS = 24 * 365;
+    private static final long START = 1356998400000L;
+    private static final int ITERATIONS = 20;
+
+    public void testYearOfHourlyBuckets() {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, HOURS);
+        final Random random = new Random(0);
+        long total = 0;
+        for (int i = 0; i < HOURS; i++) {
+            final long bucketStart = START + i * HOUR_IN_MILLIS;
+            final long rx = random.nextInt(1024 * 1024);
+            final long tx = random.nextInt(128 * 1024);
+            history.recordData(bucketStart, bucketStart + HOUR_IN_MILLIS,
+                    new NetworkStats.Entry(rx, 1, tx, 1, 0));
+            total += rx + tx;
+        }
+        final long end = START + HOURS * HOUR_IN_MILLIS;
+
+        final ChartDataUsageView.TimeAxis horiz = new ChartDataUsageView.TimeAxis();
+        final ChartDataUsageView.DataAxis vert = new ChartDataUsageView.DataAxis();
+        horiz.setSize(WIDTH);
+        horiz.setBounds(START, end);
+        vert.setSize(HEIGHT);
+        vert.setBounds(0, total * 12 / 10);
+
+        final ChartNetworkSeriesView series = new ChartNetworkSeriesView(getContext());
+        series.init(horiz, vert);
+        series.setBounds(START, end);
+        series.layout(0, 0, WIDTH, HEIGHT);
+        final Canvas canvas = new Canvas(Bitmap.createBitmap(
+                WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            series.bindNetworkStats(history);
+            series.draw(canvas);
+        }
+        final long rebuildTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        // the whole year is on screen
+        assertEquals(total, series.getMaxVisible());
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            vert.setBounds(0, total * (12 + i % 2) / 10);
+            series.invalidatePath();
+            series.draw(canvas);
+        }
+        final long vertTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            series.setPrimaryRange(START + i * HOUR_IN_MILLIS, end - i * HOUR_IN_MILLIS);
+            series.draw(canvas);
+        }
+        final long sweepTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        Log.i(TAG, HOURS + " buckets at " + WIDTH + "px: bind " + (rebuildTime / 1000)
+                + "us, vertical axis change " + (vertTime / 1000) + "us, sweep "
+                + (sweepTime / 1000) + "us");
+
+        assertEquals(total, series.getMaxVisible());
+    }
+}
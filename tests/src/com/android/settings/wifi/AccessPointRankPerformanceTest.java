@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiSsid;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures parsing, merging and sorting 500 synthetic scan results the way
+ * the Wi-Fi list does on every scan.
+ */
+@LargeTest
+public class AccessPointRankPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "AccessPointRankPerformanceTest";
+
+    private static final int ITERATIONS = 10;
+    private static final int SCAN_RESULTS = 500;
+
+    private static final String[] CAPABILITIES = {
+        "",
+        "[ESS]",
+        "[WEP][ESS]",
+        "[WPA-PSK-TKIP][ESS]",
+        "[WPA2-PSK-CCMP][ESS]",
+        "[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][WPS][ESS]",
+        "[WPA2-EAP-CCMP][ESS]",
+        "[IBSS]",
+    };
+
+    public void testRank500() {
+        final ArrayList<ScanResult> results = createScanResults(SCAN_RESULTS);
+
+        // Parsing every capabilities string against the cache
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<ITERATIONS; i++) {
+            for (int j=0; j<results.size(); j++) {
+                new AccessPoint.Capabilities(results.get(j).capabilities);
+            }
+        }
+        final long parseTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i=0; i<ITERATIONS; i++) {
+            for (int j=0; j<results.size(); j++) {
+                AccessPoint.getCapabilities(results.get(j));
+            }
+        }
+        final long cachedTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        // Merging into access points kept across scans, as WifiSettings does
+        final HashMap<String, AccessPoint> accessPoints = new HashMap<String, AccessPoint>();
+        long mergeTime = 0;
+        for (int i=0; i<ITERATIONS; i++) {
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int j=0; j<results.size(); j++) {
+                final ScanResult result = results.get(j);
+                if (AccessPoint.getCapabilities(result).adhoc) {
+                    continue;
+                }
+                final String key = AccessPoint.getKey(result);
+                AccessPoint accessPoint = accessPoints.get(key);
+                if (accessPoint == null) {
+                    accessPoint = new AccessPoint(getContext(), result);
+                    accessPoints.put(key, accessPoint);
+                }
+                accessPoint.update(null, result);
+                accessPoint.takeRankChanged();
+            }
+            mergeTime += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        mergeTime /= ITERATIONS;
+
+        final ArrayList<AccessPoint> sorted = new ArrayList<AccessPoint>(accessPoints.values());
+        final Random random = new Random(0);
+        long sortTime = 0;
+        for (int i=0; i<ITERATIONS; i++) {
+            Collections.shuffle(sorted, random);
+            start = SystemClock.elapsedRealtimeNanos();
+            Collections.sort(sorted);
+            sortTime += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        sortTime /= ITERATIONS;
+
+        Log.i(TAG, results.size() + " scan results, " + sorted.size() + " access points: parse "
+                + (parseTime / 1000) + "us, cached " + (cachedTime / 1000) + "us, merge "
+                + (mergeTime / 1000) + "us, sort " + (sortTime / 1000) + "us");
+
+        // Stronger first, then by ssid ignoring case.
+        for (int i=1; i<sorted.size(); i++) {
+            final AccessPoint previous = sorted.get(i-1);
+            final AccessPoint current = sorted.get(i);
+            assertTrue(previous.getLevel() >= current.getLevel());
+            if (previous.getLevel() == current.getLevel()) {
+                assertTrue(previous.ssid.compareToIgnoreCase(current.ssid) <= 0);
+            }
+        }
+    }
+
+    private static ArrayList<ScanResult> createScanResults(int count) {
+        final Random random = new Random(count);
+        final ArrayList<ScanResult> results = new ArrayList<ScanResult>(count);
+        for (int i=0; i<count; i++) {
+            // About three BSSIDs per network
+            final int network = random.nextInt(count / 3);
+            final String ssid = (random.nextBoolean() ? "Network" : "NETWORK") + network;
+            final String bssid = String.format("02:00:00:%02x:%02x:%02x",
+                    (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+            final String capabilities = CAPABILITIES[network % CAPABILITIES.length];
+            final int level = -95 + random.nextInt(60);
+            final int frequency = random.nextBoolean() ? 2412 : 5180;
+            results.add(new ScanResult(WifiSsid.createFromAsciiEncoded(ssid), bssid,
+                    capabilities, level, frequency, 0));
+        }
+        return results;
+    }
+}